@@ -5,13 +5,67 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
 
 public interface Filesystem extends AutoCloseable {
 
+    /**
+     * Opens the filesystem that is stored in the given file.
+     * <p>
+     * By default, each modification is written to the file immediately. With a page cache, the modifications are
+     * only written when the cache runs full, on {@link #flush()} and on {@link #close()}. If the process crashes
+     * before that, the modifications since the last flush are lost, and the directories and files that have been
+     * modified since then may be damaged.
+     *
+     * @param mode "r" or "rw", as in {@link java.io.RandomAccessFile#RandomAccessFile(File, String)},
+     *             optionally followed by ",mmap" to access the file via memory mapping,
+     *             or by ",memory" to load the file into memory and, in mode "rw", write it back on close;
+     *             a page cache is enabled by ",cache=pages", in pages of 4 KiB
+     */
     static Filesystem open(File file, String mode) throws IOException {
         return Api.open(file, mode);
     }
 
+    /**
+     * Creates an empty filesystem that is only kept in memory.
+     *
+     * @see #snapshot(File)
+     */
+    static Filesystem openInMemory() throws IOException {
+        return Api.openInMemory();
+    }
+
+    /**
+     * Writes all pending modifications to the underlying file.
+     */
+    void flush() throws IOException;
+
+    /**
+     * Releases the space that has been preallocated for growing the filesystem.
+     * This also happens when the filesystem is closed.
+     */
+    void compact() throws IOException;
+
+    /**
+     * Moves the blocks of the filesystem toward the beginning of the underlying file, so that unused space in the
+     * middle of the file can be released. Each call performs only a bounded amount of work, so that the filesystem
+     * can be defragmented while it is in use.
+     *
+     * @param steps the amount of work, roughly in directory entries and moved blocks
+     * @return whether the defragmentation has finished, in which case the next call starts another pass
+     */
+    boolean defragment(int steps) throws IOException;
+
+    /**
+     * Returns the counters of the caches, such as "pageCache.hits" and "pageCache.misses", for tuning their sizes.
+     */
+    Map<String, Long> getStatistics();
+
+    /**
+     * Writes the current image of the filesystem to the given file, which can later be opened again.
+     */
+    void snapshot(File file) throws IOException;
+
     void close() throws IOException;
 
     void rename(Path path, String newName) throws IOException;
@@ -26,5 +80,13 @@ public interface Filesystem extends AutoCloseable {
 
     OpenFile open(Path file, String mode) throws IOException;
 
+    /**
+     * Opens the file, like {@link #open(Path, String)}.
+     *
+     * @param expectedSize the expected size of the file, which the filesystem uses to choose the layout of the file
+     *                     when it is written from scratch, or 0 if unknown
+     */
+    OpenFile open(Path file, String mode, long expectedSize) throws IOException;
+
     void delete(Path file) throws IOException;
 }
@@ -13,6 +13,11 @@ public interface OpenFile extends AutoCloseable {
 
     long tell();
 
+    /**
+     * Passes the buffered data to the filesystem, making it visible to other open files.
+     */
+    void flush() throws IOException;
+
     @Override
     void close() throws IOException;
 }
@@ -7,4 +7,8 @@ public class Api {
     public static de.roland_illig.sffs.Filesystem open(File file, String mode) throws IOException {
         return new Filesystem(file, mode);
     }
+
+    public static de.roland_illig.sffs.Filesystem openInMemory() throws IOException {
+        return new Filesystem(new MemoryDevice(null, MappedDevice.SEGMENT_BITS));
+    }
 }
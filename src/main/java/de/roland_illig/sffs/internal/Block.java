@@ -8,13 +8,12 @@ final class Block {
     final Storage storage;
     private final long offset;
 
-    private int size;
+    private final int size;
 
     Block(Storage storage, long offset) throws IOException {
         this.storage = storage;
         this.offset = offset;
-
-        getType(); // verify that the magic number is known
+        this.size = storage.getBlockSize(offset); // also verifies that the magic number is known
     }
 
     long getRef() {
@@ -22,11 +21,10 @@ final class Block {
     }
 
     BlockType getType() throws IOException {
-        return BlockType.byMagic(storage.readInt(offset));
+        return storage.getBlockType(offset);
     }
 
-    int getSize() throws IOException {
-        if (size == 0) size = storage.readInt(offset + 4);
+    int getSize() {
         return size;
     }
 
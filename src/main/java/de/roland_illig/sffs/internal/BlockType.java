@@ -8,7 +8,12 @@ enum BlockType {
     REGULAR("SFre"),
     CHUNK("SFch"),
     FREE("SFfr"),
-    NAME("SFnm");
+    NAME("SFnm"),
+    BITMAP("SFbm"),
+    HASHED_DIRECTORY("SFdh"),
+    DIRECTORY_TABLE("SFdt"),
+    DIRECTORY_NODE("SFdn"),
+    EXTENT_NODE("SFen");
 
     private final int magic;
 
@@ -31,4 +36,8 @@ enum BlockType {
     int getMagic() {
         return magic;
     }
+
+    boolean isDirectory() {
+        return this == DIRECTORY || this == HASHED_DIRECTORY;
+    }
 }
@@ -0,0 +1,316 @@
+package de.roland_illig.sffs.internal;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Keeps recently accessed pages of another device in memory and writes the modified pages back on flush or close.
+ * <p>
+ * Pages are evicted using the CLOCK algorithm. Transfers of a page or more, such as file chunks, bypass the cache,
+ * so that they don't evict the metadata.
+ */
+final class CachedDevice implements Device {
+
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    /**
+     * The largest number of pages that fit into a single buffer.
+     */
+    static final int MAX_PAGES = Integer.MAX_VALUE / PAGE_SIZE;
+
+    private final Device device;
+    private final ByteBuffer data;
+    private final long[] pageNumbers;
+    private final boolean[] referenced;
+    private final boolean[] dirty;
+    private final LongIntMap slots;
+    private int hand;
+    private long size;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * The buffer for reading and writing integer values that cross a page boundary.
+     */
+    private final byte[] scratch = new byte[8];
+
+    CachedDevice(Device device, int pages) throws IOException {
+        this.device = device;
+        this.data = ByteBuffer.allocate(Math.multiplyExact(pages, PAGE_SIZE));
+        this.pageNumbers = new long[pages];
+        this.referenced = new boolean[pages];
+        this.dirty = new boolean[pages];
+        this.slots = new LongIntMap(pages);
+        this.size = device.size();
+        Arrays.fill(pageNumbers, -1);
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void setSize(long size) throws IOException {
+        if (size < this.size) {
+            for (var slot = 0; slot < pageNumbers.length; slot++) {
+                var start = pageNumbers[slot] << PAGE_BITS;
+                if (pageNumbers[slot] != -1 && start + PAGE_SIZE > size) {
+                    if (start >= size) {
+                        drop(slot);
+                    } else {
+                        // The space beyond the end must read as zero when the device grows again.
+                        var pos = (int) (size - start);
+                        Arrays.fill(data.array(), slot * PAGE_SIZE + pos, (slot + 1) * PAGE_SIZE, (byte) 0);
+                    }
+                }
+            }
+        }
+        device.setSize(size);
+        this.size = size;
+    }
+
+    @Override
+    public int readInt(long offset) throws IOException {
+        checkRange(offset, 4);
+        var pos = (int) (offset & PAGE_MASK);
+        if (pos <= PAGE_SIZE - 4)
+            return data.getInt(slot(offset >>> PAGE_BITS) * PAGE_SIZE + pos);
+        readFully(offset, scratch, 0, 4);
+        return ByteBuffer.wrap(scratch).getInt(0);
+    }
+
+    @Override
+    public long readLong(long offset) throws IOException {
+        checkRange(offset, 8);
+        var pos = (int) (offset & PAGE_MASK);
+        if (pos <= PAGE_SIZE - 8)
+            return data.getLong(slot(offset >>> PAGE_BITS) * PAGE_SIZE + pos);
+        readFully(offset, scratch, 0, 8);
+        return ByteBuffer.wrap(scratch).getLong(0);
+    }
+
+    @Override
+    public int read(long offset, byte[] buf, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (offset >= size)
+            return -1;
+        var n = (int) Math.min(len, size - offset);
+        readFully(offset, buf, off, n);
+        return n;
+    }
+
+    @Override
+    public void readFully(long offset, byte[] buf, int off, int len) throws IOException {
+        checkRange(offset, len);
+        if (len >= PAGE_SIZE) {
+            device.readFully(offset, buf, off, len);
+            forEachCachedPage(offset, len, (slot, pagePos, bufPos, n) -> {
+                if (dirty[slot]) data.get(slot * PAGE_SIZE + pagePos, buf, off + bufPos, n);
+            });
+            return;
+        }
+
+        for (var done = 0; done < len; ) {
+            var pos = (int) ((offset + done) & PAGE_MASK);
+            var n = Math.min(len - done, PAGE_SIZE - pos);
+            var slot = slot((offset + done) >>> PAGE_BITS);
+            data.get(slot * PAGE_SIZE + pos, buf, off + done, n);
+            done += n;
+        }
+    }
+
+    @Override
+    public void write(long offset, byte[] buf, int off, int len) throws IOException {
+        ensureSize(offset, len);
+        if (len >= PAGE_SIZE) {
+            device.write(offset, buf, off, len);
+            forEachCachedPage(offset, len, (slot, pagePos, bufPos, n) ->
+                    data.put(slot * PAGE_SIZE + pagePos, buf, off + bufPos, n));
+            return;
+        }
+
+        for (var done = 0; done < len; ) {
+            var pos = (int) ((offset + done) & PAGE_MASK);
+            var n = Math.min(len - done, PAGE_SIZE - pos);
+            var slot = slot((offset + done) >>> PAGE_BITS);
+            data.put(slot * PAGE_SIZE + pos, buf, off + done, n);
+            dirty[slot] = true;
+            done += n;
+        }
+    }
+
+    @Override
+    public void writeInt(long offset, int v) throws IOException {
+        ensureSize(offset, 4);
+        var pos = (int) (offset & PAGE_MASK);
+        if (pos > PAGE_SIZE - 4) {
+            ByteBuffer.wrap(scratch).putInt(0, v);
+            write(offset, scratch, 0, 4);
+            return;
+        }
+        var slot = slot(offset >>> PAGE_BITS);
+        data.putInt(slot * PAGE_SIZE + pos, v);
+        dirty[slot] = true;
+    }
+
+    @Override
+    public void writeLong(long offset, long v) throws IOException {
+        ensureSize(offset, 8);
+        var pos = (int) (offset & PAGE_MASK);
+        if (pos > PAGE_SIZE - 8) {
+            ByteBuffer.wrap(scratch).putLong(0, v);
+            write(offset, scratch, 0, 8);
+            return;
+        }
+        var slot = slot(offset >>> PAGE_BITS);
+        data.putLong(slot * PAGE_SIZE + pos, v);
+        dirty[slot] = true;
+    }
+
+    @Override
+    public void writeLongThrough(long offset, long v) throws IOException {
+        writeLong(offset, v);
+        ByteBuffer.wrap(scratch).putLong(0, v);
+        device.write(offset, scratch, 0, 8);
+        device.writeBarrier();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBack();
+        device.flush();
+    }
+
+    @Override
+    public void writeBarrier() throws IOException {
+        writeBack();
+        device.writeBarrier();
+    }
+
+    /**
+     * Writes the modified pages back to the device, in ascending order.
+     */
+    private void writeBack() throws IOException {
+        var pages = new long[pageNumbers.length];
+        var n = 0;
+        for (var slot = 0; slot < pageNumbers.length; slot++)
+            if (dirty[slot])
+                pages[n++] = pageNumbers[slot];
+        Arrays.sort(pages, 0, n);
+        for (var i = 0; i < n; i++)
+            writeBack(slots.get(pages[i]));
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        device.close();
+    }
+
+    @Override
+    public void snapshot(File file) throws IOException {
+        flush();
+        device.snapshot(file);
+    }
+
+    @Override
+    public void statistics(Map<String, Long> stats) {
+        device.statistics(stats);
+        stats.put("pageCache.hits", hits);
+        stats.put("pageCache.misses", misses);
+    }
+
+    /**
+     * Returns the slot of the page, loading the page if necessary.
+     */
+    private int slot(long pageNumber) throws IOException {
+        var slot = slots.get(pageNumber);
+        if (slot != -1) {
+            hits++;
+            referenced[slot] = true;
+            return slot;
+        }
+
+        misses++;
+        slot = evict();
+        var start = pageNumber << PAGE_BITS;
+        var n = (int) Math.min(PAGE_SIZE, size - start);
+        device.readFully(start, data.array(), slot * PAGE_SIZE, n);
+        Arrays.fill(data.array(), slot * PAGE_SIZE + n, (slot + 1) * PAGE_SIZE, (byte) 0);
+        pageNumbers[slot] = pageNumber;
+        referenced[slot] = true;
+        slots.put(pageNumber, slot);
+        return slot;
+    }
+
+    /**
+     * Frees a slot, using the CLOCK algorithm.
+     */
+    private int evict() throws IOException {
+        while (true) {
+            var slot = hand;
+            hand = (hand + 1) % pageNumbers.length;
+            if (pageNumbers[slot] != -1 && referenced[slot]) {
+                referenced[slot] = false;
+                continue;
+            }
+            if (pageNumbers[slot] != -1) {
+                writeBack(slot);
+                drop(slot);
+            }
+            return slot;
+        }
+    }
+
+    private void writeBack(int slot) throws IOException {
+        if (!dirty[slot]) return;
+        var start = pageNumbers[slot] << PAGE_BITS;
+        var n = (int) Math.min(PAGE_SIZE, size - start);
+        device.write(start, data.array(), slot * PAGE_SIZE, n);
+        dirty[slot] = false;
+    }
+
+    private void drop(int slot) {
+        slots.remove(pageNumbers[slot]);
+        pageNumbers[slot] = -1;
+        referenced[slot] = false;
+        dirty[slot] = false;
+    }
+
+    private interface PageAction {
+        void apply(int slot, int pagePos, int bufPos, int len);
+    }
+
+    /**
+     * Calls the action for each cached page that overlaps the given range, without loading any pages.
+     */
+    private void forEachCachedPage(long offset, int len, PageAction action) {
+        var end = offset + len;
+        for (var page = offset >>> PAGE_BITS; page << PAGE_BITS < end; page++) {
+            var slot = slots.get(page);
+            if (slot == -1) continue;
+            var start = Math.max(offset, page << PAGE_BITS);
+            var n = (int) (Math.min(end, (page + 1) << PAGE_BITS) - start);
+            action.apply(slot, (int) (start & PAGE_MASK), (int) (start - offset), n);
+        }
+    }
+
+    private void checkRange(long offset, int len) throws EOFException {
+        if (offset < 0 || offset + len > size)
+            throw new EOFException();
+    }
+
+    private void ensureSize(long offset, int len) throws IOException {
+        if (offset + len > size)
+            setSize(offset + len);
+    }
+}
@@ -0,0 +1,98 @@
+package de.roland_illig.sffs.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A device that uses positional reads and writes on the file channel, which costs a single system call per access
+ * and leaves the file pointer alone.
+ */
+final class ChannelDevice implements Device {
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    /**
+     * The buffer for reading and writing integer values, to avoid allocating a new buffer for each access.
+     */
+    private final ByteBuffer scratch = ByteBuffer.allocate(8);
+
+    ChannelDevice(RandomAccessFile file) {
+        this.file = file;
+        this.channel = file.getChannel();
+    }
+
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public void setSize(long size) throws IOException {
+        file.setLength(size);
+    }
+
+    @Override
+    public int readInt(long offset) throws IOException {
+        return readScratch(offset, 4).getInt(0);
+    }
+
+    @Override
+    public long readLong(long offset) throws IOException {
+        return readScratch(offset, 8).getLong(0);
+    }
+
+    @Override
+    public int read(long offset, byte[] buf, int off, int len) throws IOException {
+        return channel.read(ByteBuffer.wrap(buf, off, len), offset);
+    }
+
+    @Override
+    public void readFully(long offset, byte[] buf, int off, int len) throws IOException {
+        readFully(offset, ByteBuffer.wrap(buf, off, len));
+    }
+
+    @Override
+    public void write(long offset, byte[] buf, int off, int len) throws IOException {
+        writeFully(offset, ByteBuffer.wrap(buf, off, len));
+    }
+
+    @Override
+    public void writeInt(long offset, int v) throws IOException {
+        scratch.clear().limit(4);
+        writeFully(offset, scratch.putInt(0, v));
+    }
+
+    @Override
+    public void writeLong(long offset, long v) throws IOException {
+        scratch.clear();
+        writeFully(offset, scratch.putLong(0, v));
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private ByteBuffer readScratch(long offset, int len) throws IOException {
+        scratch.clear().limit(len);
+        readFully(offset, scratch);
+        return scratch;
+    }
+
+    private void readFully(long offset, ByteBuffer buf) throws IOException {
+        for (var pos = offset; buf.hasRemaining(); ) {
+            var n = channel.read(buf, pos);
+            if (n < 0) throw new EOFException();
+            pos += n;
+        }
+    }
+
+    private void writeFully(long offset, ByteBuffer buf) throws IOException {
+        for (var pos = offset; buf.hasRemaining(); )
+            pos += channel.write(buf, pos);
+    }
+}
@@ -0,0 +1,153 @@
+package de.roland_illig.sffs.internal;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.LongPredicate;
+
+/**
+ * Moves the blocks toward the beginning of the storage, in small steps, so that the storage can finally be truncated.
+ * <p>
+ * The blocks are visited in the order of the directory tree, so that the blocks of a directory end up near each
+ * other. The chunks of each large file are moved into adjacent space, a few extents per step. Regular files that are
+ * currently open are not moved, since the open file refers to their block; their chunks are moved nevertheless.
+ * <p>
+ * Whenever the directory tree changes, the defragmenter looks up the directories it is visiting in their parent
+ * directories and continues from there. A directory that has been moved away or removed is skipped for the rest of
+ * the pass, and entries that have been added or moved within a directory may be skipped as well.
+ */
+final class Defragmenter {
+
+    private final Storage storage;
+    private final LongPredicate canMoveFile;
+
+    /**
+     * The directories that are currently visited, from the root directory downwards, together with the next entry to
+     * visit in each of them.
+     */
+    private long[] dirs = new long[16];
+    private int[] entries = new int[16];
+    private int depth = -1;
+
+    /**
+     * The regular file whose extents are currently moved, or 0, together with the first chunk of the extents that
+     * have not been visited yet.
+     */
+    private long file;
+    private int fileChunk;
+
+    /**
+     * Whether the directory tree may have changed since the last step.
+     */
+    private boolean modified;
+
+    Defragmenter(Storage storage, LongPredicate canMoveFile) {
+        this.storage = storage;
+        this.canMoveFile = canMoveFile;
+    }
+
+    /**
+     * Notes that the directory tree has changed, so that the visited directories are checked before the next step.
+     */
+    void modified() {
+        modified = true;
+    }
+
+    /**
+     * Performs a bounded amount of work, measured in visited directory entries, visited extents and moved blocks.
+     *
+     * @return whether a complete pass has been finished, in which case the storage has been truncated
+     */
+    boolean step(int budget) throws IOException {
+        if (modified) {
+            revalidate();
+            modified = false;
+        }
+
+        if (depth == -1) {
+            var root = new Superblock(storage).getRootDirectory().moveDown();
+            push(root.block.getRef());
+            budget--;
+        }
+
+        while (budget > 0 && depth >= 0) {
+            if (file != 0) {
+                var progress = new RegularFile(new Block(storage, 16 * file)).moveChunksDown(fileChunk, budget);
+                budget -= progress.work();
+                fileChunk = progress.next();
+                if (fileChunk == -1)
+                    file = 0;
+                continue;
+            }
+
+            var dir = new Directory(new Block(storage, 16 * dirs[depth]));
+            var entry = entries[depth];
+            if (entry >= dir.getEntriesCount()) {
+                depth--;
+                continue;
+            }
+            entries[depth]++;
+            budget--;
+
+            var obj = dir.moveEntryDown(entry, canMoveFile);
+            if (obj == null)
+                continue;
+            if (obj.getType().isDirectory())
+                push(obj.getRef());
+            else if (obj.getType() == BlockType.REGULAR) {
+                file = obj.getRef();
+                fileChunk = 0;
+            }
+        }
+
+        if (depth >= 0)
+            return false;
+        storage.moveBitmapDown();
+        storage.compact();
+        return true;
+    }
+
+    /**
+     * Checks that each visited directory is still referenced by its parent directory, and continues after the entry
+     * that refers to it now. From the first directory that is no longer referenced, the walk continues in its parent
+     * directory. The directories are checked from the root downwards, so that a directory that has been removed is not
+     * accessed anymore.
+     */
+    private void revalidate() throws IOException {
+        if (depth == -1)
+            return;
+        if (new Superblock(storage).getRootDirectoryRef() != dirs[0]) {
+            depth = -1;
+            file = 0;
+            return;
+        }
+
+        for (var i = 1; i <= depth; i++) {
+            var parent = new Directory(new Block(storage, 16 * dirs[i - 1]));
+            var entry = parent.findEntry(entries[i - 1] - 1, dirs[i], true);
+            if (entry == -1) {
+                depth = i - 1;
+                file = 0;
+                return;
+            }
+            entries[i - 1] = entry + 1;
+        }
+        if (file != 0) {
+            var dir = new Directory(new Block(storage, 16 * dirs[depth]));
+            var entry = dir.findEntry(entries[depth] - 1, file, false);
+            if (entry == -1)
+                file = 0;
+            else
+                entries[depth] = entry + 1;
+        }
+    }
+
+    private void push(long dirRef) {
+        depth++;
+        if (depth == dirs.length) {
+            dirs = Arrays.copyOf(dirs, 2 * depth);
+            entries = Arrays.copyOf(entries, 2 * depth);
+        }
+        dirs[depth] = dirRef;
+        entries[depth] = 0;
+    }
+}
@@ -0,0 +1,78 @@
+package de.roland_illig.sffs.internal;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the results of looking up a name in a directory, so that resolving a path does not need to read the
+ * names of all directory entries along the way.
+ * <p>
+ * The cache is direct-mapped: each (directory, name) pair has a single slot, which is simply overwritten by another
+ * pair. A lookup that found nothing is remembered as well, as a reference to 0.
+ */
+final class DentryCache {
+
+    private static final int BITS = 12;
+
+    private final long[] dirRefs = new long[1 << BITS];
+    private final String[] names = new String[1 << BITS];
+    private final long[] objectRefs = new long[1 << BITS];
+
+    private long hits;
+    private long misses;
+
+    DentryCache() {
+        Arrays.fill(dirRefs, -1);
+    }
+
+    /**
+     * @return the reference to the object, 0 if the directory has no entry with that name, or -1 if unknown
+     */
+    long get(long dirRef, String name) {
+        var slot = slot(dirRef, name);
+        if (dirRefs[slot] == dirRef && names[slot].equals(name)) {
+            hits++;
+            return objectRefs[slot];
+        }
+        misses++;
+        return -1;
+    }
+
+    void put(long dirRef, String name, long objectRef) {
+        var slot = slot(dirRef, name);
+        dirRefs[slot] = dirRef;
+        names[slot] = name;
+        objectRefs[slot] = objectRef;
+    }
+
+    /**
+     * Forgets the entry, after it has been added to or removed from the directory.
+     */
+    void forget(long dirRef, String name) {
+        var slot = slot(dirRef, name);
+        if (dirRefs[slot] == dirRef && names[slot].equals(name))
+            dirRefs[slot] = -1;
+    }
+
+    /**
+     * Forgets everything about the block, after it has been moved or freed, since its reference may be reused by
+     * another block.
+     */
+    void forgetBlock(long ref) {
+        for (var slot = 0; slot < dirRefs.length; slot++)
+            if (dirRefs[slot] == ref || dirRefs[slot] != -1 && objectRefs[slot] == ref)
+                dirRefs[slot] = -1;
+    }
+
+    long hits() {
+        return hits;
+    }
+
+    long misses() {
+        return misses;
+    }
+
+    private static int slot(long dirRef, String name) {
+        var h = (dirRef * 31 + name.hashCode()) * 0x9E37_79B9_7F4A_7C15L;
+        return (int) (h >>> -BITS);
+    }
+}
@@ -0,0 +1,132 @@
+package de.roland_illig.sffs.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+
+/**
+ * The linear address space in which the blocks are stored.
+ * <p>
+ * Integer values are stored in big endian.
+ *
+ * @see Storage
+ */
+interface Device extends AutoCloseable {
+
+    long size() throws IOException;
+
+    /**
+     * Grows or shrinks the device; grown space reads as zero.
+     */
+    void setSize(long size) throws IOException;
+
+    int readInt(long offset) throws IOException;
+
+    long readLong(long offset) throws IOException;
+
+    /**
+     * @return the number of bytes read, or -1 if the offset is at or after the end of the device
+     */
+    int read(long offset, byte[] buf, int off, int len) throws IOException;
+
+    void readFully(long offset, byte[] buf, int off, int len) throws IOException;
+
+    void write(long offset, byte[] buf, int off, int len) throws IOException;
+
+    void writeInt(long offset, int v) throws IOException;
+
+    void writeLong(long offset, long v) throws IOException;
+
+    /**
+     * Writes the value to the underlying file before any other modification that is still pending, so that it
+     * survives a crash that loses these modifications.
+     */
+    default void writeLongThrough(long offset, long v) throws IOException {
+        writeLong(offset, v);
+    }
+
+    /**
+     * Writes all modifications to the underlying file.
+     */
+    default void flush() throws IOException {
+    }
+
+    /**
+     * Makes sure that the modifications so far reach the underlying file before any later modification. A device
+     * that writes all modifications to the file at once doesn't need to write anything here.
+     */
+    default void writeBarrier() throws IOException {
+        flush();
+    }
+
+    @Override
+    void close() throws IOException;
+
+    /**
+     * Writes the content of the device to the file.
+     */
+    default void snapshot(File file) throws IOException {
+        try (var out = new FileOutputStream(file)) {
+            var buf = new byte[64 * 1024];
+            for (long offset = 0, size = size(); offset < size; offset += buf.length) {
+                var n = (int) Math.min(buf.length, size - offset);
+                readFully(offset, buf, 0, n);
+                out.write(buf, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Adds the counters of this device to the statistics.
+     */
+    default void statistics(Map<String, Long> stats) {
+    }
+
+    /**
+     * Opens the device for the given file.
+     * <p>
+     * The mode is one of the modes from {@link RandomAccessFile}, optionally followed by options, each preceded by a
+     * comma:
+     * <ul>
+     * <li>{@code mmap} maps the file into memory</li>
+     * <li>{@code memory} loads the file into memory; in mode "rw", it is written back on close</li>
+     * <li>{@code cache=pages} keeps the given number of pages of 4 KiB, at most 524287, in a write-back cache, which
+     * loses the modifications that have not been flushed yet when the process crashes; by default, there is no
+     * cache</li>
+     * </ul>
+     * These options are only supported for the modes "r" and "rw".
+     */
+    static Device open(File file, String mode) throws IOException {
+        var options = mode.split(",", -1);
+        var fileMode = options[0];
+        if (options.length == 1 && !fileMode.equals("r") && !fileMode.equals("rw"))
+            return new ChannelDevice(new RandomAccessFile(file, mode));
+        if (!fileMode.equals("r") && !fileMode.equals("rw"))
+            throw illegalMode(mode);
+
+        String backend = null;
+        var pages = -1;
+        for (var i = 1; i < options.length; i++) {
+            var option = options[i];
+            if ((option.equals("mmap") || option.equals("memory")) && backend == null)
+                backend = option;
+            else if (option.matches("cache=\\d{1,6}") && pages == -1)
+                pages = Integer.parseInt(option.substring(6));
+            else
+                throw illegalMode(mode);
+        }
+        if (pages > CachedDevice.MAX_PAGES)
+            throw illegalMode(mode);
+
+        var device = backend == null ? new ChannelDevice(new RandomAccessFile(file, fileMode))
+                : backend.equals("mmap") ? new MappedDevice(new RandomAccessFile(file, fileMode), fileMode, MappedDevice.SEGMENT_BITS)
+                : MemoryDevice.load(file, fileMode.equals("rw"));
+        return pages > 0 ? new CachedDevice(device, pages) : device;
+    }
+
+    private static IllegalArgumentException illegalMode(String mode) {
+        return new IllegalArgumentException("Illegal mode \"" + mode + "\"");
+    }
+}
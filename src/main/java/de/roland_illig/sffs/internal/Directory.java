@@ -2,26 +2,58 @@ package de.roland_illig.sffs.internal;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.LongPredicate;
 
 /**
- * A directory consists of a reference to its parent directory, followed by the directory entries as (name, object).
+ * A directory maps names to filesystem objects.
+ * <p>
+ * A hashed directory consists of a header with a reference to its parent directory, followed by a reference to a
+ * {@link DirectoryTable} with the entries. When the table becomes too full, the entries are moved to a table of
+ * twice the size, a few entries on each modification, so that no single modification has to move all entries.
+ * When the table would become too large, the entries are moved to a {@link DirectoryTree} instead, in the same way.
+ * When most of the entries have been removed, they are moved to a smaller table.
+ * Since the header stays in place, the references to the directory remain valid.
+ * <p>
+ * A directory in the older, linear format consists of a reference to its parent directory, followed by the directory
+ * entries as (name, object). It is converted to a hashed directory on its first modification.
  */
 final class Directory {
 
-    final Block block;
+    static final int HEADER_SIZE = 32;
+    static final int INITIAL_SLOTS = 4;
+
+    /**
+     * The number of slots of the largest table. A directory with more entries stores them in a tree.
+     */
+    static final int MAX_TABLE_SLOTS = 1024;
+
+    /**
+     * The number of slots of the previous table whose entries are moved to the current table on each modification.
+     * Since the current table has twice the slots and is at most half full, all entries have been moved before the
+     * current table needs to grow.
+     */
+    private static final int MOVE_SLOTS = 8;
+
+    Block block;
 
     Directory(Block block) throws IOException {
-        this.block = block.checkType(BlockType.DIRECTORY);
+        if (!block.getType().isDirectory())
+            throw new FileSystemException(null, null, "expected DIRECTORY, got " + block.getType());
+        this.block = block;
     }
 
     private interface Offsets {
         int PARENT = 0;
 
+        // The linear format.
+
         static int name(int entry) {
             return 8 + entry * 16;
         }
@@ -33,6 +65,17 @@ final class Directory {
         static int entriesCount(int blockSize) {
             return (blockSize - 8) / 16;
         }
+
+        // The hashed format.
+
+        int TABLE = 8;
+        int PREVIOUS = 16;
+        int COUNT = 24;
+        int MOVED = 28;
+    }
+
+    private boolean isHashed() throws IOException {
+        return block.getType() == BlockType.HASHED_DIRECTORY;
     }
 
     Directory getParent() throws IOException {
@@ -44,192 +87,470 @@ final class Directory {
     }
 
     void setParent(Block parent) throws IOException {
-        block.writeRef(Offsets.PARENT, parent.checkType(BlockType.DIRECTORY));
+        block.writeRef(Offsets.PARENT, new Directory(parent).block);
     }
 
-    private int getEntriesCount() throws IOException {
-        return Offsets.entriesCount(block.getSize());
+    private DirectoryEntries getEntries() throws IOException {
+        var entries = block.block(block.readRef(Offsets.TABLE));
+        if (entries.getType() == BlockType.DIRECTORY_NODE)
+            return new DirectoryTree(entries);
+        return new DirectoryTable(entries);
     }
 
-    private long getNameRef(int entry) throws IOException {
-        return block.readRef(Offsets.name(entry));
+    private void setEntries(DirectoryEntries entries) throws IOException {
+        if (block.readRef(Offsets.TABLE) != entries.block().getRef())
+            block.writeRef(Offsets.TABLE, entries.block());
+    }
+
+    /**
+     * @return the table whose entries are being moved to the current table or tree, or null
+     */
+    private DirectoryTable getPrevious() throws IOException {
+        var ref = block.readRef(Offsets.PREVIOUS);
+        return ref != 0 ? new DirectoryTable(block.block(ref)) : null;
     }
 
-    private Block getName(int entry) throws IOException {
-        return block.block(getNameRef(entry));
+    private int getCount() throws IOException {
+        return block.readInt(Offsets.COUNT);
+    }
+
+    private int getMoved() throws IOException {
+        return block.readInt(Offsets.MOVED);
+    }
+
+    /**
+     * Returns the number of entries that can be accessed by their index, including the empty ones.
+     * In a hashed directory, these are the slots of the previous table, followed by the current entries.
+     */
+    int getEntriesCount() throws IOException {
+        if (!isHashed())
+            return Offsets.entriesCount(block.getSize());
+        var previous = getPrevious();
+        return (previous != null ? previous.slots() : 0) + getEntries().getEntriesCount();
     }
 
-    private String getNameString(int entry) throws IOException {
-        return new Name(getName(entry)).get();
+    /**
+     * @return the name of the entry, or null if the entry is empty
+     */
+    private String getEntryName(int entry) throws IOException {
+        if (!isHashed()) {
+            var nameRef = block.readRef(Offsets.name(entry));
+            return nameRef != 0 ? nameAtRef(nameRef) : null;
+        }
+
+        var previous = getPrevious();
+        if (previous != null) {
+            if (entry < previous.slots())
+                return entry >= getMoved() ? previous.getName(entry) : null;
+            entry -= previous.slots();
+        }
+        return getEntries().getName(entry);
     }
 
-    private void setNameRef(int entry, long ref) throws IOException {
-        block.writeRef(Offsets.name(entry), ref);
+    /**
+     * @return the reference to the block containing the name of the entry, or 0 if the name is stored inline
+     */
+    private long getNameRef(int entry) throws IOException {
+        if (!isHashed())
+            return block.readRef(Offsets.name(entry));
+
+        var previous = getPrevious();
+        if (previous != null) {
+            if (entry < previous.slots())
+                return previous.getNameRef(entry);
+            entry -= previous.slots();
+        }
+        return getEntries().getNameRef(entry);
     }
 
     private void setName(int entry, Block name) throws IOException {
-        block.writeRef(Offsets.name(entry), name);
+        if (!isHashed()) {
+            block.writeRef(Offsets.name(entry), name);
+            return;
+        }
+
+        var previous = getPrevious();
+        if (previous != null) {
+            if (entry < previous.slots()) {
+                previous.setNameRef(entry, name.getRef());
+                return;
+            }
+            entry -= previous.slots();
+        }
+        getEntries().setNameRef(entry, name.getRef());
     }
 
     private long getObjectRef(int entry) throws IOException {
-        return block.readRef(Offsets.object(entry));
+        if (!isHashed())
+            return block.readRef(Offsets.object(entry));
+
+        var previous = getPrevious();
+        if (previous != null) {
+            if (entry < previous.slots())
+                return previous.getObjectRef(entry);
+            entry -= previous.slots();
+        }
+        return getEntries().getObjectRef(entry);
     }
 
     private Block getObject(int entry) throws IOException {
         return block.block(getObjectRef(entry));
     }
 
-    private void setObjectRef(int entry, long ref) throws IOException {
-        block.writeRef(Offsets.object(entry), ref);
-    }
-
     private void setObject(int entry, Block obj) throws IOException {
-        block.writeRef(Offsets.object(entry), obj);
+        if (!isHashed()) {
+            block.writeRef(Offsets.object(entry), obj);
+            return;
+        }
+
+        var previous = getPrevious();
+        if (previous != null) {
+            if (entry < previous.slots()) {
+                previous.setObjectRef(entry, obj.getRef());
+                return;
+            }
+            entry -= previous.slots();
+        }
+        getEntries().setObjectRef(entry, obj.getRef());
     }
 
     List<String> readdir() throws IOException {
         var names = new ArrayList<String>();
-        for (int entry = 0, max = getEntriesCount(); entry < max; entry++) {
-            var nameRef = getNameRef(entry);
-            if (nameRef != 0)
-                names.add(nameAtRef(nameRef));
+        if (!isHashed()) {
+            for (int entry = 0, max = getEntriesCount(); entry < max; entry++) {
+                var name = getEntryName(entry);
+                if (name != null)
+                    names.add(name);
+            }
+            return names;
         }
+
+        var previous = getPrevious();
+        if (previous != null)
+            previous.readNames(getMoved(), names);
+        getEntries().readNames(names);
         return names;
     }
 
-    void mkdir(Path dir) throws IOException {
-        var name = dir.getFileName().toString();
-        var emptyEntry = -1;
-        for (int entry = 0, max = getEntriesCount(); entry < max; entry++) {
-            var nameRef = getNameRef(entry);
-            if (nameRef == 0 && emptyEntry == -1)
-                emptyEntry = entry;
-            if (name.equals(nameAtRef(nameRef)))
-                throw fileAlreadyExists(dir);
-        }
-
-        if (emptyEntry == -1) {
-            var enlarged = enlarge();
-            enlarged.mkdir(dir);
-            return;
+    /**
+     * @return the reference to the object with the given name, or 0
+     */
+    private long find(String name) throws IOException {
+        var bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (!isHashed()) {
+            for (int entry = 0, max = getEntriesCount(); entry < max; entry++) {
+                var nameRef = getNameRef(entry);
+                if (nameRef != 0 && Name.equals(block.storage, nameRef, bytes))
+                    return getObjectRef(entry);
+            }
+            return 0;
         }
 
-        var nameBlock = block.storage.allocateName(name);
-        var dirBlock = block.storage.allocateDirectory(4, block.getRef());
-        setName(emptyEntry, nameBlock);
-        setObject(emptyEntry, dirBlock);
+        var obj = getEntries().lookup(bytes);
+        if (obj != 0)
+            return obj;
+        var slot = findPrevious(bytes);
+        return slot != -1 ? getPrevious().getObjectRef(slot) : 0;
     }
 
     /**
-     * Remove this directory from its parent directory.
+     * @param name the UTF-8 encoded name
+     * @return the slot of the previous table that has not been moved yet and contains the name, or -1
      */
-    void removeMe(Path dir) throws IOException {
-        for (int entry = 0, max = getEntriesCount(); entry < max; entry++)
-            if (getNameRef(entry) != 0)
-                throw new DirectoryNotEmptyException(dir.toString());
+    private int findPrevious(byte[] name) throws IOException {
+        var previous = getPrevious();
+        if (previous == null)
+            return -1;
+        return previous.find(name, Name.hash(name), getMoved());
+    }
 
-        var parent = getParent();
-        for (int entry = 0, max = parent.getEntriesCount(); entry < max; entry++) {
-            if (parent.getObjectRef(entry) == block.getRef()) {
-                var nameRef = parent.getNameRef(entry);
+    /**
+     * Adds the entry, whose name must not exist yet.
+     */
+    private void insert(String name, byte[] entry, Block obj) throws IOException {
+        reserve();
+        DirectoryEntry.setObjectRef(entry, obj.getRef());
+
+        var entries = getEntries();
+        var count = getCount();
+        entries.insert(name, entry);
+        setEntries(entries);
+        block.writeInt(Offsets.COUNT, count + 1);
+        moveEntries(MOVE_SLOTS);
+    }
 
-                parent.setNameRef(entry, 0);
-                parent.setObjectRef(entry, 0);
+    /**
+     * Makes room for another entry, by replacing a table that would become more than half full with a larger one.
+     * <p>
+     * While the entries of a previous table are still being moved, the table cannot be replaced. The migration then
+     * continues in the same bounded steps, and the table grows afterwards. As long as the table has room, it may
+     * become more than half full in the meantime. Only a full table needs the remaining entries to be moved at once.
+     */
+    private void reserve() throws IOException {
+        convert();
 
-                block.block(nameRef, BlockType.NAME).free();
-                block.free();
+        var count = getCount();
+        if (getEntries() instanceof DirectoryTable table && 2 * (count + 1) > table.slots()) {
+            if (getPrevious() != null && count + 1 < table.slots()) {
+                moveEntries(MOVE_SLOTS);
                 return;
             }
+            moveEntries(Integer.MAX_VALUE);
+            var larger = table.slots() < MAX_TABLE_SLOTS
+                    ? block.storage.allocateDirectoryTable(2 * table.slots())
+                    : block.storage.allocateDirectoryNode(0);
+            block.writeRef(Offsets.PREVIOUS, table.block);
+            block.writeRef(Offsets.TABLE, larger);
         }
     }
 
     /**
-     * Remove the block from the directory entries, but don't free it.
+     * Removes the entry and frees its name.
      */
-    void remove(Block obj) throws IOException {
-        for (int entry = 0, max = getEntriesCount(); entry < max; entry++) {
-            if (getObjectRef(entry) == obj.getRef()) {
-                getName(entry).free();
-                setNameRef(entry, 0);
-                setObjectRef(entry, 0);
+    private void removeEntry(String name) throws IOException {
+        convert();
+
+        var entries = getEntries();
+        var removed = entries.remove(name);
+        if (removed != null) {
+            setEntries(entries);
+        } else {
+            var slot = findPrevious(name.getBytes(StandardCharsets.UTF_8));
+            if (slot == -1)
                 return;
-            }
+            removed = getPrevious().removeMoving(slot);
         }
+
+        DirectoryEntry.freeName(block.storage, removed);
+        block.writeInt(Offsets.COUNT, getCount() - 1);
+        block.storage.dentries.forget(block.getRef(), name);
+        shrink();
+        moveEntries(MOVE_SLOTS);
     }
 
-    void rename(Path oldPath, String newName) throws IOException {
-        var oldEntry = -1;
-        var oldName = oldPath.getFileName().toString();
-        for (int entry = 0, max = getEntriesCount(); entry < max; entry++) {
-            var name = getNameString(entry);
-            if (newName.equals(name))
-                throw fileAlreadyExists(oldPath.resolveSibling(newName));
-            if (oldName.equals(name))
-                oldEntry = entry;
+    /**
+     * Moves the entries to a smaller table when few of them are left, so that visiting the entries does not have to
+     * skip many empty slots.
+     * <p>
+     * A table shrinks to half its slots when less than 1/8 of them are used, so that it is at most 1/4 full afterwards.
+     * The entries are moved in the same way as when the table grows. Since a table only grows when it would become
+     * more than half full, alternately adding and removing an entry does not repeatedly grow and shrink the table.
+     * <p>
+     * A tree is replaced with a table when it has less than 1/8 as many entries as the largest table has slots. The
+     * tree is small enough then to move all its entries at once.
+     */
+    private void shrink() throws IOException {
+        if (getPrevious() != null)
+            return;
+
+        var entries = getEntries();
+        var count = getCount();
+        if (entries instanceof DirectoryTable table) {
+            if (table.slots() > INITIAL_SLOTS && 8 * count < table.slots()) {
+                block.writeRef(Offsets.PREVIOUS, table.block);
+                block.writeRef(Offsets.TABLE, block.storage.allocateDirectoryTable(table.slots() / 2));
+            }
+            return;
         }
 
-        if (oldEntry == -1)
-            throw fileNotFound(oldPath);
+        if (8 * count >= MAX_TABLE_SLOTS)
+            return;
+        var table = new DirectoryTable(block.storage.allocateDirectoryTable(MAX_TABLE_SLOTS / 2));
+        for (int entry = 0, max = entries.getEntriesCount(); entry < max; entry++)
+            table.insert(entries.getName(entry), entries.getEntry(entry));
+        entries.free();
+        block.writeRef(Offsets.TABLE, table.block);
+    }
 
-        var name = block.storage.allocateName(newName);
-        getName(oldEntry).free();
-        setName(oldEntry, name);
+    /**
+     * Moves the entries from the given number of slots of the previous table to the current table or tree.
+     * When all entries have been moved, the previous table is freed.
+     */
+    private void moveEntries(int maxSlots) throws IOException {
+        var previous = getPrevious();
+        if (previous == null)
+            return;
+
+        var entries = getEntries();
+        var moved = getMoved();
+        var end = moved + Math.min(maxSlots, previous.slots() - moved);
+        for (; moved < end; moved++) {
+            var name = previous.getName(moved);
+            if (name != null)
+                entries.insert(name, previous.getEntry(moved));
+        }
+        setEntries(entries);
+
+        if (moved < previous.slots()) {
+            block.writeInt(Offsets.MOVED, moved);
+            return;
+        }
+        previous.free();
+        block.writeRef(Offsets.PREVIOUS, 0);
+        block.writeInt(Offsets.MOVED, 0);
     }
 
-    Directory create(Path path, String name, Block obj) throws IOException {
-        var emptyEntry = -1;
+    /**
+     * Converts a directory in the linear format to a hashed directory, keeping its reference.
+     * The short names are moved into the entries, the long names keep their blocks.
+     */
+    private void convert() throws IOException {
+        if (isHashed())
+            return;
+
+        var slots = INITIAL_SLOTS;
+        var count = 0;
+        for (int entry = 0, max = getEntriesCount(); entry < max; entry++)
+            if (getNameRef(entry) != 0)
+                count++;
+        while (2 * count > slots)
+            slots *= 2;
+
+        var table = new DirectoryTable(block.storage.allocateDirectoryTable(slots));
         for (int entry = 0, max = getEntriesCount(); entry < max; entry++) {
             var nameRef = getNameRef(entry);
-            if (nameRef == 0 && emptyEntry == -1)
-                emptyEntry = entry;
-            if (name.equals(nameAtRef(nameRef)))
-                throw fileAlreadyExists(path);
+            if (nameRef != 0)
+                table.insert(nameAtRef(nameRef), convertEntry(nameRef, getObjectRef(entry)));
         }
 
-        if (emptyEntry == -1) {
-            var enlarged = enlarge();
-            return enlarged.create(path, name, obj);
+        var parentRef = getParentRef();
+        if (block.getSize() >= HEADER_SIZE) {
+            block = block.storage.shrink(block, BlockType.HASHED_DIRECTORY, HEADER_SIZE);
+            block.writeRef(Offsets.PARENT, parentRef);
+            block.writeRef(Offsets.TABLE, table.block);
+            block.writeRef(Offsets.PREVIOUS, 0);
+            block.writeInt(Offsets.COUNT, count);
+            block.writeInt(Offsets.MOVED, 0);
+            return;
         }
 
-        var nameBlock = block.storage.allocateName(name);
-        setName(emptyEntry, nameBlock);
-        setObject(emptyEntry, obj);
-        return this;
+        // Only handcrafted directories are that small, so it's ok to update the references to the directory.
+        var old = block;
+        block = block.storage.allocateDirectory(parentRef);
+        getEntries().free();
+        block.writeRef(Offsets.TABLE, table.block);
+        block.writeInt(Offsets.COUNT, count);
+        if (parentRef != old.getRef()) {
+            var parent = getParent();
+            for (int entry = 0, max = parent.getEntriesCount(); entry < max; entry++)
+                if (parent.getEntryName(entry) != null && parent.getObjectRef(entry) == old.getRef())
+                    parent.setObject(entry, block);
+        }
+        takeOverReferences(old.getRef());
+        old.free();
     }
 
-    OpenFile open(Path file, String mode) throws IOException {
-        var name = file.getFileName().toString();
+    private byte[] convertEntry(long nameRef, long objectRef) throws IOException {
+        var nameBlock = block.block(nameRef, BlockType.NAME);
+        if (nameBlock.getSize() > DirectoryEntry.MAX_INLINE)
+            return DirectoryEntry.create(nameRef, objectRef);
 
-        var emptyEntry = -1;
-        for (int entry = 0, max = getEntriesCount(); entry < max; entry++) {
-            var nameRef = getNameRef(entry);
-            if (nameRef == 0 && emptyEntry == -1)
-                emptyEntry = entry;
-            if (name.equals(nameAtRef(nameRef)))
-                return new OpenFile(new RegularFile(getObject(entry)), mode);
+        var entry = DirectoryEntry.create(block.storage, new Name(nameBlock).get(), objectRef);
+        nameBlock.free();
+        return entry;
+    }
+
+    void mkdir(Path dir) throws IOException {
+        var name = dir.getFileName().toString();
+        if (find(name) != 0)
+            throw fileAlreadyExists(dir);
+
+        var entry = DirectoryEntry.create(block.storage, name, 0);
+        convert();
+        var dirBlock = block.storage.allocateDirectory(block.getRef());
+        insert(name, entry, dirBlock);
+        block.storage.dentries.forget(block.getRef(), name);
+    }
+
+    /**
+     * Remove this directory from its parent directory.
+     */
+    void removeMe(Path dir) throws IOException {
+        if (isHashed() ? getCount() != 0 : !readdir().isEmpty())
+            throw new DirectoryNotEmptyException(dir.toString());
+
+        var parent = getParent();
+        var name = dir.getFileName() != null ? dir.getFileName().toString() : "";
+        if (parent.find(name) != block.getRef()) {
+            // The path does not name the directory directly, as in "dir/.".
+            name = null;
+            for (int entry = 0, max = parent.getEntriesCount(); entry < max && name == null; entry++)
+                if (parent.getObjectRef(entry) == block.getRef())
+                    name = parent.getEntryName(entry);
+            if (name == null)
+                return;
         }
-        if (mode.equals("r"))
-            throw fileNotFound(file);
+        parent.removeEntry(name);
 
-        if (emptyEntry == -1) {
-            var enlarged = enlarge();
-            return enlarged.open(file, mode);
+        if (isHashed()) {
+            var previous = getPrevious();
+            if (previous != null)
+                previous.free();
+            getEntries().free();
         }
+        block.free();
+        block.storage.dentries.forgetBlock(block.getRef());
+    }
+
+    /**
+     * Remove the entry from the directory, but don't free its object.
+     */
+    void remove(String name) throws IOException {
+        removeEntry(name);
+    }
+
+    void rename(Path oldPath, String newName) throws IOException {
+        var oldName = oldPath.getFileName().toString();
+        if (find(newName) != 0)
+            throw fileAlreadyExists(oldPath.resolveSibling(newName));
+        var obj = find(oldName);
+        if (obj == 0)
+            throw fileNotFound(oldPath);
+
+        var entry = DirectoryEntry.create(block.storage, newName, 0);
+        removeEntry(oldName);
+        insert(newName, entry, block.block(obj));
+        block.storage.dentries.forget(block.getRef(), newName);
+    }
+
+    void create(Path path, String name, Block obj) throws IOException {
+        if (find(name) != 0)
+            throw fileAlreadyExists(path);
+
+        var entry = DirectoryEntry.create(block.storage, name, 0);
+        insert(name, entry, obj);
+        block.storage.dentries.forget(block.getRef(), name);
+    }
+
+    OpenFile open(Path file, String mode, long expectedSize) throws IOException {
+        var name = file.getFileName().toString();
+
+        var obj = find(name);
+        if (obj != 0)
+            return new OpenFile(new RegularFile(block.block(obj)), mode, expectedSize);
+        if (mode.equals("r"))
+            throw fileNotFound(file);
 
-        var nameBlock = block.storage.allocateName(name);
-        var fileBlock = block.storage.allocateFile();
-        setName(emptyEntry, nameBlock);
-        setObject(emptyEntry, fileBlock);
-        return new OpenFile(new RegularFile(fileBlock), mode);
+        // The larger table is allocated before the file, so that the block of the file can grow in place.
+        var entry = DirectoryEntry.create(block.storage, name, 0);
+        reserve();
+        var fileBlock = block.storage.allocateFile(RegularFile.blockSize(expectedSize));
+        insert(name, entry, fileBlock);
+        block.storage.dentries.forget(block.getRef(), name);
+        return new OpenFile(new RegularFile(fileBlock), mode, expectedSize);
     }
 
     Block lookup(String name) throws IOException {
         if (name.equals(".")) return this.block;
         if (name.equals("..")) return getParent().block;
-        for (int entry = 0, max = getEntriesCount(); entry < max; entry++)
-            if (name.equals(getNameString(entry)))
-                return getObject(entry);
-        return null;
+
+        var dentries = block.storage.dentries;
+        var ref = dentries.get(block.getRef(), name);
+        if (ref == -1) {
+            ref = find(name);
+            dentries.put(block.getRef(), name, ref);
+        }
+        return ref != 0 ? block.block(ref) : null;
     }
 
     Directory lookupDir(String name) throws IOException {
@@ -239,49 +560,126 @@ final class Directory {
 
     void delete(Path file) throws IOException {
         var name = file.getFileName().toString();
-        for (int entry = 0, max = getEntriesCount(); entry < max; entry++) {
-            if (name.equals(getNameString(entry))) {
-                var obj = getObject(entry);
-                var reg = new RegularFile(obj);
+        var obj = find(name);
+        if (obj == 0)
+            throw fileNotFound(file);
 
-                getName(entry).free();
-                setNameRef(entry, 0);
-                setObjectRef(entry, 0);
+        var reg = new RegularFile(block.block(obj));
+        removeEntry(name);
+        reg.delete();
+    }
 
-                reg.delete();
-                return;
-            }
+    /**
+     * Moves the directory toward the beginning of the storage, if there is free space. The caller must update the
+     * entry in the parent directory.
+     *
+     * @return the moved directory, or this directory
+     */
+    Directory moveDown() throws IOException {
+        var moved = block.storage.moveDown(block);
+        var dir = this;
+        if (moved != null) {
+            dir = new Directory(moved);
+            dir.takeOverReferences(block.getRef());
         }
-        throw fileNotFound(file);
-    }
 
-    private Directory enlarge() throws IOException {
-        var large = block.storage.allocateDirectory(2 * (block.getSize() / 16), getParentRef());
+        if (dir.isHashed()) {
+            var entries = block.storage.moveDown(dir.getEntries().block());
+            if (entries != null)
+                dir.block.writeRef(Offsets.TABLE, entries);
+            var previous = dir.getPrevious();
+            if (previous != null && (previous = moveDown(previous)) != null)
+                dir.block.writeRef(Offsets.PREVIOUS, previous.block);
+        }
+        return dir;
+    }
 
-        var entries = new byte[block.getSize() - 8];
-        block.readFully(8, entries, 0, entries.length);
-        large.write(8, entries, 0, entries.length);
+    private DirectoryTable moveDown(DirectoryTable table) throws IOException {
+        var moved = block.storage.moveDown(table.block);
+        return moved != null ? new DirectoryTable(moved) : null;
+    }
 
-        var parent = getParent();
-        for (int entry = 0, max = parent.getEntriesCount(); entry < max; entry++) {
-            if (parent.getObjectRef(entry) == block.getRef())
-                parent.setObject(entry, large);
+    /**
+     * Redirects the references to the directory at the old location to this directory.
+     */
+    private void takeOverReferences(long oldRef) throws IOException {
+        block.storage.dentries.forgetBlock(oldRef);
+        var superblock = new Superblock(block.storage);
+        if (superblock.getRootDirectoryRef() == oldRef) {
+            superblock.setRootDirectory(block);
+            block.writeRef(Offsets.PARENT, block);
         }
 
         for (int entry = 0, max = getEntriesCount(); entry < max; entry++) {
+            if (getEntryName(entry) == null)
+                continue;
             var child = getObject(entry);
-            if (child.getType() == BlockType.DIRECTORY)
-                new Directory(child).setParent(large);
+            if (child.getType().isDirectory())
+                new Directory(child).setParent(block);
         }
+    }
 
-        var superblock = new Superblock(block.storage);
-        if (superblock.getRootDirectoryRef() == block.getRef()) {
-            superblock.setRootDirectory(large);
-            large.writeRef(0, large);
+    /**
+     * Finds the entry that refers to the given object. Since the block of a removed object may have been reused, the
+     * object must also still be a directory or a regular file, as before.
+     *
+     * @param hint the entry that referred to the object before, which is checked first
+     * @return the entry that refers to the given object, or -1
+     */
+    int findEntry(int hint, long objectRef, boolean directory) throws IOException {
+        var max = getEntriesCount();
+        if (hint >= 0 && hint < max && refersTo(hint, objectRef, directory))
+            return hint;
+        for (var entry = 0; entry < max; entry++)
+            if (refersTo(entry, objectRef, directory))
+                return entry;
+        return -1;
+    }
+
+    private boolean refersTo(int entry, long objectRef, boolean directory) throws IOException {
+        return getEntryName(entry) != null
+                && getObjectRef(entry) == objectRef
+                && getObject(entry).getType().isDirectory() == directory;
+    }
+
+    /**
+     * Moves the name and the object of the entry toward the beginning of the storage, if there is free space.
+     *
+     * @param canMoveFile whether the regular file with the given reference may be moved
+     * @return the object of the entry, or null if the entry is empty
+     */
+    Block moveEntryDown(int entry, LongPredicate canMoveFile) throws IOException {
+        if (getEntryName(entry) == null)
+            return null;
+
+        var nameRef = getNameRef(entry);
+        var name = nameRef != 0 ? block.storage.moveDown(block.block(nameRef)) : null;
+        if (name != null)
+            setName(entry, name);
+
+        if (isHashed() && getEntries() instanceof DirectoryTree tree) {
+            var previous = getPrevious();
+            var index = entry - (previous != null ? previous.slots() : 0);
+            if (index >= 0)
+                tree.moveNodesDown(index);
         }
 
-        block.free();
-        return new Directory(large);
+        var obj = getObject(entry);
+        if (obj.getType().isDirectory()) {
+            var dir = new Directory(obj).moveDown();
+            if (dir.block.getRef() != obj.getRef())
+                setObject(entry, dir.block);
+            return dir.block;
+        }
+        if (obj.getType() == BlockType.REGULAR && canMoveFile.test(obj.getRef())) {
+            var moved = block.storage.moveDown(obj);
+            if (moved != null) {
+                setObject(entry, moved);
+                block.storage.dentries.forgetBlock(obj.getRef());
+                return moved;
+            }
+        }
+        return obj;
     }
 
     private String nameAtRef(long nameRef) throws IOException {
@@ -0,0 +1,69 @@
+package de.roland_illig.sffs.internal;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The entries of a hashed directory, either in a {@link DirectoryTable} or in a {@link DirectoryTree}.
+ * <p>
+ * The entries can be accessed by their index, for visiting all of them. Some of these entries may be empty.
+ * The format of a single entry is described in {@link DirectoryEntry}.
+ */
+interface DirectoryEntries {
+
+    /**
+     * The block that the directory refers to.
+     */
+    Block block();
+
+    int getEntriesCount() throws IOException;
+
+    /**
+     * @return the name of the entry, or null if the entry is empty
+     */
+    String getName(int entry) throws IOException;
+
+    /**
+     * @return the reference to the block containing the name, or 0 if the name is stored inline
+     */
+    long getNameRef(int entry) throws IOException;
+
+    void setNameRef(int entry, long ref) throws IOException;
+
+    long getObjectRef(int entry) throws IOException;
+
+    void setObjectRef(int entry, long ref) throws IOException;
+
+    /**
+     * @return a copy of the entry, as described in {@link DirectoryEntry}
+     */
+    byte[] getEntry(int entry) throws IOException;
+
+    /**
+     * @param name the UTF-8 encoded name
+     * @return the reference to the object with the given name, or 0
+     */
+    long lookup(byte[] name) throws IOException;
+
+    /**
+     * Adds an entry for the name, which must not exist yet.
+     */
+    void insert(String name, byte[] entry) throws IOException;
+
+    /**
+     * Removes the entry with the given name.
+     *
+     * @return the removed entry, or null if there is no such entry
+     */
+    byte[] remove(String name) throws IOException;
+
+    /**
+     * Appends the names of all entries.
+     */
+    void readNames(List<String> names) throws IOException;
+
+    /**
+     * Frees the blocks that contain the entries, but not the names and objects of the entries.
+     */
+    void free() throws IOException;
+}
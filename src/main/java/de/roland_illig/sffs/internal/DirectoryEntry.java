@@ -0,0 +1,193 @@
+package de.roland_illig.sffs.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The format of an entry in a {@link DirectoryTable} or a {@link DirectoryTree}.
+ * <p>
+ * An entry consists of the name, followed by a reference to the object. A name of up to {@link #MAX_INLINE} bytes
+ * is stored inline, preceded by its length. A longer name is stored in a separate block, and the entry refers to it.
+ * An entry whose name has length 0 is empty.
+ * <p>
+ * Outside the storage, an entry is represented as a byte array of {@link #SIZE} bytes.
+ */
+final class DirectoryEntry {
+
+    static final int SIZE = 32;
+    static final int MAX_INLINE = 23;
+
+    private interface Offsets {
+        int LENGTH = 0;
+        int NAME = 1;
+        int NAME_REF = 8;
+        int OBJECT = 24;
+    }
+
+    /**
+     * The length of a name that is stored in a separate block.
+     */
+    private static final int EXTERNAL = 0xFF;
+
+    private DirectoryEntry() {
+    }
+
+    /**
+     * Creates an entry for the name and the object, allocating a block for the name if it is too long to be stored
+     * inline.
+     */
+    static byte[] create(Storage storage, String name, long objectRef) throws IOException {
+        Name.check(name);
+
+        var bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_INLINE)
+            return create(storage.allocateName(name).getRef(), objectRef);
+
+        var entry = new byte[SIZE];
+        entry[Offsets.LENGTH] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, entry, Offsets.NAME, bytes.length);
+        setObjectRef(entry, objectRef);
+        return entry;
+    }
+
+    /**
+     * Creates an entry whose name is stored in the given block.
+     */
+    static byte[] create(long nameRef, long objectRef) {
+        var entry = new byte[SIZE];
+        entry[Offsets.LENGTH] = (byte) EXTERNAL;
+        ByteBuffer.wrap(entry).putLong(Offsets.NAME_REF, nameRef);
+        setObjectRef(entry, objectRef);
+        return entry;
+    }
+
+    static void setObjectRef(byte[] entry, long ref) {
+        ByteBuffer.wrap(entry).putLong(Offsets.OBJECT, ref);
+    }
+
+    /**
+     * Frees the block of the name, if the name is not stored inline.
+     */
+    static void freeName(Storage storage, byte[] entry) throws IOException {
+        if ((entry[Offsets.LENGTH] & 0xFF) == EXTERNAL)
+            new Block(storage, 16 * ByteBuffer.wrap(entry).getLong(Offsets.NAME_REF)).checkType(BlockType.NAME).free();
+    }
+
+    static byte[] read(Block block, int pos) throws IOException {
+        var entry = new byte[SIZE];
+        block.readFully(pos, entry, 0, SIZE);
+        return entry;
+    }
+
+    static void write(Block block, int pos, byte[] entry) throws IOException {
+        block.write(pos, entry, 0, SIZE);
+    }
+
+    static boolean isEmpty(Block block, int pos) throws IOException {
+        return length(block, pos) == 0;
+    }
+
+    /**
+     * @return the UTF-8 encoded name, or null if the entry is empty
+     */
+    static byte[] nameBytes(Block block, int pos) throws IOException {
+        var length = length(block, pos);
+        if (length == 0)
+            return null;
+        if (length == EXTERNAL)
+            return new Name(block.block(block.readRef(pos + Offsets.NAME_REF))).getBytes();
+
+        var bytes = new byte[length];
+        block.readFully(pos + Offsets.NAME, bytes, 0, length);
+        return bytes;
+    }
+
+    /**
+     * @return the name, or null if the entry is empty
+     */
+    static String name(Block block, int pos) throws IOException {
+        var bytes = nameBytes(block, pos);
+        return bytes != null ? new String(bytes, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Tells whether the entry has the given UTF-8 encoded name, without allocating memory.
+     * A name of a different length is rejected without reading the name.
+     */
+    static boolean hasName(Block block, int pos, byte[] name) throws IOException {
+        var length = length(block, pos);
+        if (length == EXTERNAL)
+            return Name.equals(block.storage, block.readRef(pos + Offsets.NAME_REF), name);
+        if (length != name.length)
+            return false;
+        var buf = block.storage.nameScratch(length);
+        block.readFully(pos + Offsets.NAME, buf, 0, length);
+        return Arrays.equals(buf, 0, length, name, 0, length);
+    }
+
+    /**
+     * Compares the name of the entry, which must not be empty, with the given UTF-8 encoded name, without allocating
+     * memory.
+     */
+    static int compareName(Block block, int pos, byte[] name) throws IOException {
+        var length = length(block, pos);
+        if (length == EXTERNAL)
+            return Name.compare(block.storage, block.readRef(pos + Offsets.NAME_REF), name);
+        var buf = block.storage.nameScratch(length);
+        block.readFully(pos + Offsets.NAME, buf, 0, length);
+        return Arrays.compareUnsigned(buf, 0, length, name, 0, name.length);
+    }
+
+    /**
+     * Returns the hash of the name of the entry, which must not be empty, without allocating memory.
+     */
+    static int hashName(Block block, int pos) throws IOException {
+        var length = length(block, pos);
+        if (length != EXTERNAL) {
+            var buf = block.storage.nameScratch(length);
+            block.readFully(pos + Offsets.NAME, buf, 0, length);
+            return Name.hash(buf, 0, length);
+        }
+
+        var offset = 16 * block.readRef(pos + Offsets.NAME_REF);
+        var size = block.storage.getBlockSize(offset);
+        var buf = block.storage.nameScratch(size);
+        block.storage.readFully(offset + 8, buf, 0, size);
+        return Name.hash(buf, 0, size);
+    }
+
+    /**
+     * @return the reference to the block containing the name, or 0 if the name is stored inline
+     */
+    static long nameRef(Block block, int pos) throws IOException {
+        return length(block, pos) == EXTERNAL ? block.readRef(pos + Offsets.NAME_REF) : 0;
+    }
+
+    /**
+     * Updates the reference to the block containing the name, after the block has been moved.
+     */
+    static void setNameRef(Block block, int pos, long ref) throws IOException {
+        block.writeRef(pos + Offsets.NAME_REF, ref);
+    }
+
+    static long objectRef(Block block, int pos) throws IOException {
+        return block.readRef(pos + Offsets.OBJECT);
+    }
+
+    static void setObjectRef(Block block, int pos, long ref) throws IOException {
+        block.writeRef(pos + Offsets.OBJECT, ref);
+    }
+
+    /**
+     * Empties the entry but keeps its object, for a removed entry in a table whose probe sequences must stay intact.
+     */
+    static void clearName(Block block, int pos) throws IOException {
+        block.write(pos, new byte[Offsets.OBJECT], 0, Offsets.OBJECT);
+    }
+
+    private static int length(Block block, int pos) throws IOException {
+        return block.readInt(pos + Offsets.LENGTH) >>> 24;
+    }
+}
@@ -0,0 +1,169 @@
+package de.roland_illig.sffs.internal;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * The entries of a hashed directory, as an open-addressed hash table with linear probing.
+ * <p>
+ * Each slot contains a {@link DirectoryEntry}. A slot whose name and object are both empty is empty. In a table whose
+ * entries are being moved to a larger table, a slot whose name is empty but whose object is not is a removed entry;
+ * the probe sequences continue after it.
+ */
+final class DirectoryTable implements DirectoryEntries {
+
+    final Block block;
+
+    DirectoryTable(Block block) throws IOException {
+        this.block = block.checkType(BlockType.DIRECTORY_TABLE);
+    }
+
+    @Override
+    public Block block() {
+        return block;
+    }
+
+    int slots() {
+        return block.getSize() / DirectoryEntry.SIZE;
+    }
+
+    @Override
+    public int getEntriesCount() {
+        return slots();
+    }
+
+    @Override
+    public String getName(int slot) throws IOException {
+        return DirectoryEntry.name(block, pos(slot));
+    }
+
+    @Override
+    public long getNameRef(int slot) throws IOException {
+        return DirectoryEntry.nameRef(block, pos(slot));
+    }
+
+    @Override
+    public void setNameRef(int slot, long ref) throws IOException {
+        DirectoryEntry.setNameRef(block, pos(slot), ref);
+    }
+
+    @Override
+    public long getObjectRef(int slot) throws IOException {
+        return DirectoryEntry.objectRef(block, pos(slot));
+    }
+
+    @Override
+    public void setObjectRef(int slot, long ref) throws IOException {
+        DirectoryEntry.setObjectRef(block, pos(slot), ref);
+    }
+
+    @Override
+    public byte[] getEntry(int slot) throws IOException {
+        return DirectoryEntry.read(block, pos(slot));
+    }
+
+    @Override
+    public long lookup(byte[] name) throws IOException {
+        var slot = find(name, Name.hash(name), 0);
+        return slot != -1 ? getObjectRef(slot) : 0;
+    }
+
+    /**
+     * @param name    the UTF-8 encoded name
+     * @param minSlot the lowest slot that is considered; the slots below have already been moved to another table
+     * @return the slot containing the name, or -1
+     */
+    int find(byte[] name, int hash, int minSlot) throws IOException {
+        var mask = slots() - 1;
+        for (var slot = hash & mask; ; slot = (slot + 1) & mask) {
+            var pos = pos(slot);
+            if (DirectoryEntry.isEmpty(block, pos)) {
+                if (DirectoryEntry.objectRef(block, pos) == 0)
+                    return -1;
+            } else if (slot >= minSlot && DirectoryEntry.hasName(block, pos, name)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Adds an entry, which must not be in the table yet. The table must have an empty slot.
+     */
+    @Override
+    public void insert(String name, byte[] entry) throws IOException {
+        var mask = slots() - 1;
+        var slot = Name.hash(name) & mask;
+        while (!DirectoryEntry.isEmpty(block, pos(slot)))
+            slot = (slot + 1) & mask;
+        DirectoryEntry.write(block, pos(slot), entry);
+    }
+
+    @Override
+    public byte[] remove(String name) throws IOException {
+        var bytes = name.getBytes(StandardCharsets.UTF_8);
+        var slot = find(bytes, Name.hash(bytes), 0);
+        if (slot == -1)
+            return null;
+        var entry = getEntry(slot);
+        remove(slot);
+        return entry;
+    }
+
+    /**
+     * Removes the entry from the slot, moving the following entries of the probe sequence into the hole, so that
+     * lookups still find them.
+     */
+    private void remove(int slot) throws IOException {
+        var mask = slots() - 1;
+        var hole = slot;
+        for (var i = (hole + 1) & mask; ; i = (i + 1) & mask) {
+            if (DirectoryEntry.isEmpty(block, pos(i)))
+                break;
+            var home = DirectoryEntry.hashName(block, pos(i)) & mask;
+            var reachable = hole <= i ? hole < home && home <= i : hole < home || home <= i;
+            if (!reachable) {
+                DirectoryEntry.write(block, pos(hole), getEntry(i));
+                hole = i;
+            }
+        }
+        DirectoryEntry.write(block, pos(hole), new byte[DirectoryEntry.SIZE]);
+    }
+
+    /**
+     * Removes the entry from the slot of a table whose entries are being moved to another table. The object of the
+     * slot is kept, so that the probe sequences continue after it.
+     *
+     * @return the removed entry
+     */
+    byte[] removeMoving(int slot) throws IOException {
+        var entry = getEntry(slot);
+        DirectoryEntry.clearName(block, pos(slot));
+        return entry;
+    }
+
+    @Override
+    public void readNames(List<String> names) throws IOException {
+        readNames(0, names);
+    }
+
+    /**
+     * Appends the names of the entries, starting at the given slot.
+     */
+    void readNames(int minSlot, List<String> names) throws IOException {
+        for (int slot = minSlot, n = slots(); slot < n; slot++) {
+            var name = getName(slot);
+            if (name != null)
+                names.add(name);
+        }
+    }
+
+    @Override
+    public void free() throws IOException {
+        block.free();
+    }
+
+    private static int pos(int slot) {
+        return DirectoryEntry.SIZE * slot;
+    }
+}
@@ -0,0 +1,487 @@
+package de.roland_illig.sffs.internal;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * The entries of a large hashed directory, as a B-tree that is sorted by the UTF-8 encoding of the names.
+ * <p>
+ * All nodes have the same size. A leaf contains the entries, as described in {@link DirectoryEntry}. An inner node
+ * additionally contains the references to its children, each together with the number of entries in the child's
+ * subtree, so that an entry can be accessed by its index in the sorted order. Inserting or removing an entry only
+ * touches the nodes on the path from the root to a leaf, and the siblings of these nodes.
+ */
+final class DirectoryTree implements DirectoryEntries {
+
+    static final int NODE_SIZE = 4096 - 8;
+
+    /**
+     * The maximum number of entries in a node. While a node is being split, it contains one more entry.
+     */
+    private static final int LEAF_CAPACITY = (NODE_SIZE - 8) / Offsets.width(true) - 1;
+    private static final int INNER_CAPACITY = (NODE_SIZE - 24) / Offsets.width(false) - 1;
+
+    private Block root;
+
+    DirectoryTree(Block root) throws IOException {
+        this.root = root.checkType(BlockType.DIRECTORY_NODE);
+    }
+
+    private interface Offsets {
+        int COUNT = 0;
+        int HEIGHT = 4;
+
+        /**
+         * In an inner node, each entry is followed by its right child and the size of that child's subtree.
+         */
+        static int width(boolean leaf) {
+            return leaf ? DirectoryEntry.SIZE : DirectoryEntry.SIZE + 16;
+        }
+
+        static int entry(boolean leaf, int i) {
+            return leaf ? 8 + width(true) * i : 24 + width(false) * i;
+        }
+
+        static int child(int i) {
+            return 8 + width(false) * i;
+        }
+
+        static int size(int i) {
+            return 16 + width(false) * i;
+        }
+    }
+
+    @Override
+    public Block block() {
+        return root;
+    }
+
+    @Override
+    public int getEntriesCount() throws IOException {
+        return Math.toIntExact(size(root));
+    }
+
+    @Override
+    public String getName(int entry) throws IOException {
+        var loc = locate(entry);
+        return DirectoryEntry.name(loc.node, loc.pos);
+    }
+
+    @Override
+    public long getNameRef(int entry) throws IOException {
+        var loc = locate(entry);
+        return DirectoryEntry.nameRef(loc.node, loc.pos);
+    }
+
+    @Override
+    public void setNameRef(int entry, long ref) throws IOException {
+        var loc = locate(entry);
+        DirectoryEntry.setNameRef(loc.node, loc.pos, ref);
+    }
+
+    @Override
+    public long getObjectRef(int entry) throws IOException {
+        var loc = locate(entry);
+        return DirectoryEntry.objectRef(loc.node, loc.pos);
+    }
+
+    @Override
+    public void setObjectRef(int entry, long ref) throws IOException {
+        var loc = locate(entry);
+        DirectoryEntry.setObjectRef(loc.node, loc.pos, ref);
+    }
+
+    @Override
+    public byte[] getEntry(int entry) throws IOException {
+        var loc = locate(entry);
+        return DirectoryEntry.read(loc.node, loc.pos);
+    }
+
+    private record Location(Block node, int pos) {
+    }
+
+    /**
+     * @return the node and the position in the node where the entry with the given index is stored
+     */
+    private Location locate(long index) throws IOException {
+        var node = root;
+        while (!isLeaf(node)) {
+            int i;
+            long size;
+            for (i = 0; index > (size = node.readLong(Offsets.size(i))); i++)
+                index -= size + 1;
+            if (index == size)
+                return new Location(node, Offsets.entry(false, i));
+            node = child(node, i);
+        }
+        return new Location(node, Offsets.entry(true, (int) index));
+    }
+
+    @Override
+    public long lookup(byte[] name) throws IOException {
+        for (var node = root; ; ) {
+            var leaf = isLeaf(node);
+            var i = search(node, leaf, name);
+            if (i >= 0)
+                return DirectoryEntry.objectRef(node, Offsets.entry(leaf, i));
+            if (leaf)
+                return 0;
+            node = child(node, -i - 1);
+        }
+    }
+
+    /**
+     * Adds the entry to a leaf, splitting the nodes that become too large.
+     * If the root is split, the tree gets a new root.
+     */
+    @Override
+    public void insert(String name, byte[] entry) throws IOException {
+        var bytes = name.getBytes(StandardCharsets.UTF_8);
+        var height = root.readInt(Offsets.HEIGHT);
+        var path = new Block[height + 1];
+        var indexes = new int[height + 1];
+        var node = root;
+        for (var depth = 0; depth < height; depth++) {
+            path[depth] = node;
+            indexes[depth] = -search(node, false, bytes) - 1;
+            addSize(node, indexes[depth], 1);
+            node = child(node, indexes[depth]);
+        }
+        path[height] = node;
+        indexes[height] = -search(node, true, bytes) - 1;
+
+        var childRef = 0L;
+        var childSize = 0L;
+        for (var depth = height; depth >= 0; depth--) {
+            node = path[depth];
+            var leaf = depth == height;
+            insertAt(node, leaf, indexes[depth], entry, childRef, childSize);
+            var n = count(node);
+            if (n <= capacity(leaf))
+                return;
+
+            // The middle entry moves up to the parent, the entries after it move to a new node.
+            var middle = n / 2;
+            entry = DirectoryEntry.read(node, Offsets.entry(leaf, middle));
+            var right = node.storage.allocateDirectoryNode(height - depth);
+            var start = leaf ? Offsets.entry(true, middle + 1) : Offsets.child(middle + 1);
+            var end = Offsets.entry(leaf, n);
+            move(node, start, end, right, 8);
+            right.writeInt(Offsets.COUNT, n - middle - 1);
+            clear(node, Offsets.entry(leaf, middle), end);
+            node.writeInt(Offsets.COUNT, middle);
+
+            if (depth > 0)
+                path[depth - 1].writeLong(Offsets.size(indexes[depth - 1]), size(node));
+            childRef = right.getRef();
+            childSize = size(right);
+        }
+
+        var newRoot = root.storage.allocateDirectoryNode(height + 1);
+        newRoot.writeInt(Offsets.COUNT, 1);
+        newRoot.writeRef(Offsets.child(0), root);
+        newRoot.writeLong(Offsets.size(0), size(root));
+        DirectoryEntry.write(newRoot, Offsets.entry(false, 0), entry);
+        newRoot.writeRef(Offsets.child(1), childRef);
+        newRoot.writeLong(Offsets.size(1), childSize);
+        root = newRoot;
+    }
+
+    /**
+     * Removes the entry, replacing an entry in an inner node with its predecessor from a leaf, and rebalances the
+     * nodes that become too small. If the root becomes empty, its only child becomes the new root.
+     */
+    @Override
+    public byte[] remove(String name) throws IOException {
+        var bytes = name.getBytes(StandardCharsets.UTF_8);
+        var height = root.readInt(Offsets.HEIGHT);
+        var path = new Block[height + 1];
+        var indexes = new int[height + 1];
+        var foundDepth = -1;
+        var node = root;
+        for (var depth = 0; ; depth++) {
+            var leaf = depth == height;
+            path[depth] = node;
+            if (foundDepth != -1) {
+                indexes[depth] = leaf ? count(node) - 1 : count(node);
+            } else {
+                var i = search(node, leaf, bytes);
+                if (i >= 0)
+                    foundDepth = depth;
+                indexes[depth] = i >= 0 ? i : -i - 1;
+            }
+            if (leaf)
+                break;
+            node = child(node, indexes[depth]);
+        }
+        if (foundDepth == -1)
+            return null;
+
+        var found = path[foundDepth];
+        var pos = Offsets.entry(foundDepth == height, indexes[foundDepth]);
+        var entry = DirectoryEntry.read(found, pos);
+        var leaf = path[height];
+        if (foundDepth != height)
+            copyEntry(leaf, Offsets.entry(true, indexes[height]), found, pos);
+        for (var depth = 0; depth < height; depth++)
+            addSize(path[depth], indexes[depth], -1);
+        removeAt(leaf, true, indexes[height]);
+
+        rebalance(path, indexes);
+        return entry;
+    }
+
+    private void rebalance(Block[] path, int[] indexes) throws IOException {
+        var height = path.length - 1;
+        for (var depth = height; depth > 0; depth--) {
+            var leaf = depth == height;
+            var min = capacity(leaf) / 2;
+            var node = path[depth];
+            if (count(node) >= min)
+                return;
+
+            var parent = path[depth - 1];
+            var i = indexes[depth - 1];
+            var left = i > 0 ? child(parent, i - 1) : null;
+            if (left != null && count(left) > min) {
+                rotateRight(parent, i - 1, left, node, leaf);
+                return;
+            }
+            var right = i < count(parent) ? child(parent, i + 1) : null;
+            if (right != null && count(right) > min) {
+                rotateLeft(parent, i, node, right, leaf);
+                return;
+            }
+            if (left != null)
+                merge(parent, i - 1, left, node, leaf);
+            else
+                merge(parent, i, node, right, leaf);
+        }
+
+        if (!isLeaf(root) && count(root) == 0) {
+            var child = child(root, 0);
+            root.free();
+            root = child;
+        }
+    }
+
+    /**
+     * Moves the last entry of the left node up to the parent, and the separating entry from the parent down to the
+     * beginning of the right node.
+     */
+    private static void rotateRight(Block parent, int sep, Block left, Block right, boolean leaf) throws IOException {
+        var n = count(right);
+        move(right, 8, Offsets.entry(leaf, n), right, 8 + Offsets.width(leaf));
+        copyEntry(parent, Offsets.entry(false, sep), right, Offsets.entry(leaf, 0));
+        right.writeInt(Offsets.COUNT, n + 1);
+
+        var leftCount = count(left);
+        var last = Offsets.entry(leaf, leftCount - 1);
+        copyEntry(left, last, parent, Offsets.entry(false, sep));
+        var moved = 1L;
+        if (!leaf) {
+            right.writeRef(Offsets.child(0), left.readRef(Offsets.child(leftCount)));
+            right.writeLong(Offsets.size(0), left.readLong(Offsets.size(leftCount)));
+            moved += left.readLong(Offsets.size(leftCount));
+        }
+        clear(left, last, Offsets.entry(leaf, leftCount));
+        left.writeInt(Offsets.COUNT, leftCount - 1);
+
+        addSize(parent, sep, -moved);
+        addSize(parent, sep + 1, moved);
+    }
+
+    /**
+     * Moves the first entry of the right node up to the parent, and the separating entry from the parent down to the
+     * end of the left node.
+     */
+    private static void rotateLeft(Block parent, int sep, Block left, Block right, boolean leaf) throws IOException {
+        var n = count(left);
+        var pos = Offsets.entry(leaf, n);
+        copyEntry(parent, Offsets.entry(false, sep), left, pos);
+        var moved = 1L;
+        if (!leaf) {
+            left.writeRef(pos + DirectoryEntry.SIZE, right.readRef(Offsets.child(0)));
+            left.writeLong(pos + DirectoryEntry.SIZE + 8, right.readLong(Offsets.size(0)));
+            moved += right.readLong(Offsets.size(0));
+        }
+        left.writeInt(Offsets.COUNT, n + 1);
+
+        copyEntry(right, Offsets.entry(leaf, 0), parent, Offsets.entry(false, sep));
+        var rightCount = count(right);
+        var width = Offsets.width(leaf);
+        var end = Offsets.entry(leaf, rightCount);
+        move(right, 8 + width, end, right, 8);
+        clear(right, end - width, end);
+        right.writeInt(Offsets.COUNT, rightCount - 1);
+
+        addSize(parent, sep, moved);
+        addSize(parent, sep + 1, -moved);
+    }
+
+    /**
+     * Moves the separating entry from the parent and all entries from the right node to the left node,
+     * and frees the right node.
+     */
+    private static void merge(Block parent, int sep, Block left, Block right, boolean leaf) throws IOException {
+        var n = count(left);
+        var rightCount = count(right);
+        var pos = Offsets.entry(leaf, n);
+        copyEntry(parent, Offsets.entry(false, sep), left, pos);
+        move(right, 8, Offsets.entry(leaf, rightCount), left, pos + DirectoryEntry.SIZE);
+        left.writeInt(Offsets.COUNT, n + 1 + rightCount);
+
+        addSize(parent, sep, 1 + parent.readLong(Offsets.size(sep + 1)));
+        removeAt(parent, false, sep);
+        right.free();
+    }
+
+    /**
+     * Moves the nodes whose first entry has the given index toward the beginning of the storage, if there is free
+     * space. Visiting all entries in their order thus moves each node once, except for the root.
+     */
+    void moveNodesDown(long index) throws IOException {
+        var node = root;
+        while (!isLeaf(node)) {
+            int i;
+            long size;
+            for (i = 0; index > (size = node.readLong(Offsets.size(i))); i++)
+                index -= size + 1;
+            if (index == size)
+                return;
+
+            var child = child(node, i);
+            if (index == 0) {
+                var moved = node.storage.moveDown(child);
+                if (moved != null) {
+                    node.writeRef(Offsets.child(i), moved);
+                    child = moved;
+                }
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Appends the names of all entries, in ascending order.
+     */
+    @Override
+    public void readNames(List<String> names) throws IOException {
+        readNames(root, names);
+    }
+
+    private static void readNames(Block node, List<String> names) throws IOException {
+        var leaf = isLeaf(node);
+        var n = count(node);
+        for (var i = 0; i < n; i++) {
+            if (!leaf)
+                readNames(child(node, i), names);
+            names.add(DirectoryEntry.name(node, Offsets.entry(leaf, i)));
+        }
+        if (!leaf)
+            readNames(child(node, n), names);
+    }
+
+    @Override
+    public void free() throws IOException {
+        free(root);
+    }
+
+    private static void free(Block node) throws IOException {
+        if (!isLeaf(node))
+            for (int i = 0, n = count(node); i <= n; i++)
+                free(child(node, i));
+        node.free();
+    }
+
+    /**
+     * @return the index of the entry with the given name, or (-(insertion point) - 1)
+     */
+    private static int search(Block node, boolean leaf, byte[] name) throws IOException {
+        var lo = 0;
+        var hi = count(node) - 1;
+        while (lo <= hi) {
+            var mid = (lo + hi) >>> 1;
+            var cmp = DirectoryEntry.compareName(node, Offsets.entry(leaf, mid), name);
+            if (cmp < 0)
+                lo = mid + 1;
+            else if (cmp > 0)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -(lo + 1);
+    }
+
+    private static void insertAt(Block node, boolean leaf, int i, byte[] entry, long childRef, long childSize)
+            throws IOException {
+        var n = count(node);
+        var pos = Offsets.entry(leaf, i);
+        move(node, pos, Offsets.entry(leaf, n), node, pos + Offsets.width(leaf));
+        DirectoryEntry.write(node, pos, entry);
+        if (!leaf) {
+            node.writeRef(pos + DirectoryEntry.SIZE, childRef);
+            node.writeLong(pos + DirectoryEntry.SIZE + 8, childSize);
+        }
+        node.writeInt(Offsets.COUNT, n + 1);
+    }
+
+    /**
+     * Removes the entry and, in an inner node, its right child.
+     */
+    private static void removeAt(Block node, boolean leaf, int i) throws IOException {
+        var n = count(node);
+        var width = Offsets.width(leaf);
+        var end = Offsets.entry(leaf, n);
+        move(node, Offsets.entry(leaf, i + 1), end, node, Offsets.entry(leaf, i));
+        clear(node, end - width, end);
+        node.writeInt(Offsets.COUNT, n - 1);
+    }
+
+    private static int count(Block node) throws IOException {
+        return node.readInt(Offsets.COUNT);
+    }
+
+    private static boolean isLeaf(Block node) throws IOException {
+        return node.readInt(Offsets.HEIGHT) == 0;
+    }
+
+    private static int capacity(boolean leaf) {
+        return leaf ? LEAF_CAPACITY : INNER_CAPACITY;
+    }
+
+    private static Block child(Block node, int i) throws IOException {
+        return node.block(node.readRef(Offsets.child(i)), BlockType.DIRECTORY_NODE);
+    }
+
+    /**
+     * @return the number of entries in the subtree of the node
+     */
+    private static long size(Block node) throws IOException {
+        var n = count(node);
+        long size = n;
+        if (!isLeaf(node))
+            for (var i = 0; i <= n; i++)
+                size += node.readLong(Offsets.size(i));
+        return size;
+    }
+
+    private static void addSize(Block node, int child, long delta) throws IOException {
+        node.writeLong(Offsets.size(child), node.readLong(Offsets.size(child)) + delta);
+    }
+
+    private static void copyEntry(Block from, int fromPos, Block to, int toPos) throws IOException {
+        move(from, fromPos, fromPos + DirectoryEntry.SIZE, to, toPos);
+    }
+
+    private static void move(Block from, int start, int end, Block to, int pos) throws IOException {
+        var buf = new byte[end - start];
+        from.readFully(start, buf, 0, buf.length);
+        to.write(pos, buf, 0, buf.length);
+    }
+
+    private static void clear(Block node, int start, int end) throws IOException {
+        node.write(start, new byte[end - start], 0, end - start);
+    }
+}
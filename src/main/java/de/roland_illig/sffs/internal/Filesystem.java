@@ -3,25 +3,38 @@ package de.roland_illig.sffs.internal;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 final class Filesystem implements de.roland_illig.sffs.Filesystem {
 
     private final Storage storage;
+    private final Set<OpenFile> openFiles = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Defragmenter defragmenter;
 
     /**
-     * @see RandomAccessFile#RandomAccessFile(File, String)
+     * @see Device#open(File, String)
      */
     Filesystem(File f, String mode) throws IOException {
-        this.storage = new Storage(new RandomAccessFile(f, mode));
+        this(Device.open(f, mode));
+    }
+
+    Filesystem(Device device) throws IOException {
+        this.storage = new Storage(device);
+        this.defragmenter = new Defragmenter(storage, this::isClosed);
     }
 
     @Override
     public void mkdir(Path dir) throws IOException {
         var parent = lookup(dir, -1);
         if (parent == null) throw fileNotFound(dir.getParent());
+        defragmenter.modified();
         parent.mkdir(dir);
     }
 
@@ -29,6 +42,7 @@ final class Filesystem implements de.roland_illig.sffs.Filesystem {
     public void rmdir(Path dir) throws IOException {
         var d = lookup(dir, 0);
         if (d == null) throw fileNotFound(dir);
+        defragmenter.modified();
         d.removeMe(dir);
     }
 
@@ -43,6 +57,7 @@ final class Filesystem implements de.roland_illig.sffs.Filesystem {
     public void rename(Path path, String newName) throws IOException {
         var dir = lookup(path, -1);
         if (dir == null) throw fileNotFound(path);
+        defragmenter.modified();
         dir.rename(path, newName);
     }
 
@@ -61,24 +76,25 @@ final class Filesystem implements de.roland_illig.sffs.Filesystem {
             throw fileNotFound(newPath);
         var newName = newPath.getFileName().toString();
         var newEntry = newParent.lookup(newName);
-        if (newEntry != null && newEntry.getType() == BlockType.DIRECTORY) {
+        if (newEntry != null && newEntry.getType().isDirectory()) {
             newParent = new Directory(newEntry);
             newName = oldPath.getFileName().toString();
         }
 
         checkAncestry(oldPath, old, newPath, newParent);
+        defragmenter.modified();
 
         var newParentRef = newParent.block.getRef();
-        newParent = newParent.create(newPath, newName, old);
+        newParent.create(newPath, newName, old);
         if (oldDir.block.getRef() == newParentRef)
             oldDir = newParent;
-        oldDir.remove(old);
-        if (old.getType() == BlockType.DIRECTORY)
+        oldDir.remove(oldPath.getFileName().toString());
+        if (old.getType().isDirectory())
             new Directory(old).setParent(newParent.block);
     }
 
     private void checkAncestry(Path oldPath, Block old, Path newPath, Directory newParent) throws IOException {
-        if (old.getType() != BlockType.DIRECTORY)
+        if (!old.getType().isDirectory())
             return;
 
         var dir = newParent;
@@ -96,18 +112,82 @@ final class Filesystem implements de.roland_illig.sffs.Filesystem {
     public void delete(Path file) throws IOException {
         var parent = lookup(file, -1);
         if (parent == null) throw fileNotFound(file.getParent());
+        flushOpenFiles();
+        defragmenter.modified();
         parent.delete(file);
     }
 
     @Override
     public OpenFile open(Path file, String mode) throws IOException {
+        return open(file, mode, 0);
+    }
+
+    @Override
+    public OpenFile open(Path file, String mode, long expectedSize) throws IOException {
         var dir = lookup(file, -1);
         if (dir == null) throw fileNotFound(file.getParent());
-        return dir.open(file, mode);
+        var existing = dir.lookup(file.getFileName().toString());
+        if (existing != null) flushOpenFiles(existing.getRef());
+        if (!mode.equals("r")) defragmenter.modified();
+        var openFile = dir.open(file, mode, expectedSize);
+        openFile.register(openFiles);
+        return openFile;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushOpenFiles();
+        storage.flush();
+    }
+
+    @Override
+    public boolean defragment(int steps) throws IOException {
+        return defragmenter.step(steps);
+    }
+
+    private boolean isClosed(long regularFileRef) {
+        for (var openFile : openFiles)
+            if (openFile.getRef() == regularFileRef)
+                return false;
+        return true;
+    }
+
+    private void flushOpenFiles() throws IOException {
+        for (var openFile : openFiles)
+            openFile.flush();
+    }
+
+    /**
+     * Writes the buffered data of the regular file, so that it can be read or truncated by another open file.
+     */
+    private void flushOpenFiles(long regularFileRef) throws IOException {
+        for (var openFile : openFiles)
+            if (openFile.getRef() == regularFileRef)
+                openFile.flush();
+    }
+
+    @Override
+    public void compact() throws IOException {
+        storage.compact();
+    }
+
+    @Override
+    public Map<String, Long> getStatistics() {
+        var stats = new TreeMap<String, Long>();
+        storage.statistics(stats);
+        return stats;
+    }
+
+    @Override
+    public void snapshot(File file) throws IOException {
+        flushOpenFiles();
+        storage.snapshot(file);
     }
 
     @Override
     public void close() throws IOException {
+        for (var openFile : new ArrayList<>(openFiles))
+            openFile.close();
         storage.close();
     }
 
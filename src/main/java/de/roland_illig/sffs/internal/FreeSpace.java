@@ -0,0 +1,162 @@
+package de.roland_illig.sffs.internal;
+
+import java.util.Arrays;
+
+/**
+ * The in-memory index of the free blocks, grouped into size classes, so that finding, adding and removing a free
+ * block takes constant time.
+ * <p>
+ * All positions and sizes are measured in units of 16 bytes, like block references.
+ * <p>
+ * Blocks of up to 63 units have a size class of their own; larger blocks are grouped by powers of 2.
+ * Each size class is a doubly linked list, stored in primitive arrays.
+ */
+final class FreeSpace {
+
+    private static final int EXACT_CLASSES = 64;
+    private static final int CLASSES = EXACT_CLASSES + 64;
+
+    private long[] starts = new long[16];
+    private long[] sizes = new long[16];
+    private int[] next = new int[16];
+    private int[] prev = new int[16];
+    private int slots;
+    private int unusedSlot = -1;
+    private int count;
+
+    private final int[] heads = new int[CLASSES];
+    private final long[] nonEmpty = new long[CLASSES / 64];
+    private final LongIntMap byStart = new LongIntMap(16);
+    private final LongIntMap byEnd = new LongIntMap(16);
+
+    FreeSpace() {
+        Arrays.fill(heads, -1);
+    }
+
+    static int sizeClass(long units) {
+        if (units < EXACT_CLASSES) return (int) units;
+        return EXACT_CLASSES + (63 - Long.numberOfLeadingZeros(units)) - 6;
+    }
+
+    long start(int slot) {
+        return starts[slot];
+    }
+
+    long size(int slot) {
+        return sizes[slot];
+    }
+
+    /**
+     * @return the slot of the free block that starts at the given position, or -1
+     */
+    int startingAt(long start) {
+        return byStart.get(start);
+    }
+
+    /**
+     * @return the slot of the free block that ends at the given position, or -1
+     */
+    int endingAt(long end) {
+        return byEnd.get(end);
+    }
+
+    /**
+     * @return the slot of a free block that has at least the given size, or -1
+     */
+    int find(long units) {
+        var sizeClass = sizeClass(units);
+        if (sizeClass >= EXACT_CLASSES) {
+            // The blocks in this class may be smaller than required; only look at the first one.
+            var head = heads[sizeClass];
+            if (head != -1 && sizes[head] >= units)
+                return head;
+            sizeClass++;
+        }
+        var nonEmptyClass = nextNonEmpty(sizeClass);
+        return nonEmptyClass != -1 ? heads[nonEmptyClass] : -1;
+    }
+
+    /**
+     * Unlike {@link #find(long)}, this method takes time proportional to the number of free blocks.
+     *
+     * @return the slot of the free block that is nearest to the beginning, has at least the given size and starts
+     * before the limit, or -1
+     */
+    int findLowest(long units, long limit) {
+        var best = -1;
+        for (var sizeClass = nextNonEmpty(sizeClass(units)); sizeClass != -1; sizeClass = nextNonEmpty(sizeClass + 1))
+            for (var slot = heads[sizeClass]; slot != -1; slot = next[slot])
+                if (sizes[slot] >= units && starts[slot] < limit && (best == -1 || starts[slot] < starts[best]))
+                    best = slot;
+        return best;
+    }
+
+    private int nextNonEmpty(int sizeClass) {
+        for (var i = sizeClass >>> 6; i < nonEmpty.length; i++) {
+            var bits = i == sizeClass >>> 6 ? nonEmpty[i] & -1L << (sizeClass & 63) : nonEmpty[i];
+            if (bits != 0)
+                return 64 * i + Long.numberOfTrailingZeros(bits);
+        }
+        return -1;
+    }
+
+    void add(long start, long units) {
+        var slot = unusedSlot;
+        if (slot != -1) {
+            unusedSlot = next[slot];
+        } else {
+            if (slots == starts.length) grow();
+            slot = slots++;
+        }
+
+        starts[slot] = start;
+        sizes[slot] = units;
+        var sizeClass = sizeClass(units);
+        var head = heads[sizeClass];
+        next[slot] = head;
+        prev[slot] = -1;
+        if (head != -1) prev[head] = slot;
+        heads[sizeClass] = slot;
+        nonEmpty[sizeClass >>> 6] |= 1L << (sizeClass & 63);
+
+        byStart.put(start, slot);
+        byEnd.put(start + units, slot);
+        count++;
+    }
+
+    void remove(int slot) {
+        var sizeClass = sizeClass(sizes[slot]);
+        if (prev[slot] != -1) next[prev[slot]] = next[slot];
+        else heads[sizeClass] = next[slot];
+        if (next[slot] != -1) prev[next[slot]] = prev[slot];
+        if (heads[sizeClass] == -1)
+            nonEmpty[sizeClass >>> 6] &= ~(1L << (sizeClass & 63));
+
+        byStart.remove(starts[slot]);
+        byEnd.remove(starts[slot] + sizes[slot]);
+        next[slot] = unusedSlot;
+        unusedSlot = slot;
+        count--;
+    }
+
+    /**
+     * @return the start positions of all free blocks, in ascending order
+     */
+    long[] sortedStarts() {
+        var result = new long[count];
+        var n = 0;
+        for (var sizeClass = nextNonEmpty(0); sizeClass != -1; sizeClass = nextNonEmpty(sizeClass + 1))
+            for (var slot = heads[sizeClass]; slot != -1; slot = next[slot])
+                result[n++] = starts[slot];
+        Arrays.sort(result);
+        return result;
+    }
+
+    private void grow() {
+        var capacity = 2 * starts.length;
+        starts = Arrays.copyOf(starts, capacity);
+        sizes = Arrays.copyOf(sizes, capacity);
+        next = Arrays.copyOf(next, capacity);
+        prev = Arrays.copyOf(prev, capacity);
+    }
+}
@@ -0,0 +1,91 @@
+package de.roland_illig.sffs.internal;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from non-negative long keys to non-negative int values, without boxing.
+ */
+final class LongIntMap {
+
+    private static final long EMPTY = -1;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    LongIntMap(int expectedSize) {
+        var capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) * 2;
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        Arrays.fill(keys, EMPTY);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the value, or -1 if the key is not in the map
+     */
+    int get(long key) {
+        for (var i = index(key); ; i = (i + 1) & mask) {
+            if (keys[i] == key) return values[i];
+            if (keys[i] == EMPTY) return -1;
+        }
+    }
+
+    void put(long key, int value) {
+        assert key >= 0 && value >= 0;
+        var i = index(key);
+        for (; keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > keys.length * 3 / 4)
+            rehash(keys.length * 2);
+    }
+
+    void remove(long key) {
+        var i = index(key);
+        for (; keys[i] != key; i = (i + 1) & mask)
+            if (keys[i] == EMPTY)
+                return;
+
+        // Move the following entries of the probe sequence into the hole, so that lookups still find them.
+        for (var j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            var home = index(keys[j]);
+            var reachable = i <= j ? i < home && home <= j : i < home || home <= j;
+            if (!reachable) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = EMPTY;
+        size--;
+    }
+
+    private int index(long key) {
+        var h = key * 0x9E37_79B9_7F4A_7C15L;
+        return (int) (h ^ h >>> 32) & mask;
+    }
+
+    private void rehash(int capacity) {
+        var oldKeys = keys;
+        var oldValues = values;
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        size = 0;
+        Arrays.fill(keys, EMPTY);
+        for (var i = 0; i < oldKeys.length; i++)
+            if (oldKeys[i] != EMPTY)
+                put(oldKeys[i], oldValues[i]);
+    }
+}
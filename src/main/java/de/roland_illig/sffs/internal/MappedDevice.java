@@ -0,0 +1,148 @@
+package de.roland_illig.sffs.internal;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A device that maps the file into memory.
+ * <p>
+ * Since a single {@link MappedByteBuffer} is limited to 2 GB, the file is mapped in segments of equal size. The
+ * last segment only extends to the end of the file and is remapped whenever the size of the file changes.
+ * <p>
+ * The segments that are replaced are unmapped immediately instead of when they are garbage collected, since some
+ * platforms don't allow truncating a file that is still mapped, and accessing a mapping beyond the end of the file
+ * crashes on others.
+ */
+final class MappedDevice extends SegmentedDevice {
+
+    static final int SEGMENT_BITS = 30;
+
+    /**
+     * Unmaps a buffer, or null if the platform doesn't support that, in which case the garbage collector unmaps the
+     * buffer later.
+     */
+    private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final FileChannel.MapMode mapMode;
+
+    /**
+     * @param mode either "r" or "rw", as in {@link RandomAccessFile#RandomAccessFile(java.io.File, String)}
+     */
+    MappedDevice(RandomAccessFile file, String mode, int segmentBits) throws IOException {
+        super(segmentBits);
+        this.file = file;
+        this.channel = file.getChannel();
+        this.mapMode = mode.equals("r") ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+        remap(channel.size());
+    }
+
+    @Override
+    void resize(long newSize) throws IOException {
+        checkWritable();
+        if (newSize > size) {
+            file.setLength(newSize);
+            remap(newSize);
+        } else {
+            remap(newSize);
+            channel.truncate(newSize);
+        }
+    }
+
+    /**
+     * Maps the file up to the given size, reusing the segments that are already completely mapped and unmapping the
+     * others.
+     */
+    private void remap(long newSize) throws IOException {
+        var newCount = segmentCount(newSize);
+        var keep = Math.min(segments.length, newCount);
+        if (keep > 0 && segments[keep - 1].capacity() != segmentLength(keep - 1, newSize))
+            keep--;
+
+        var oldSegments = segments;
+        segments = Arrays.copyOf(segments, newCount);
+        dirty = Arrays.copyOf(dirty, newCount);
+        for (var i = keep; i < newCount; i++)
+            segments[i] = channel.map(mapMode, (long) i << segmentBits, segmentLength(i, newSize));
+        size = newSize;
+        for (var i = keep; i < oldSegments.length; i++)
+            unmap(oldSegments[i]);
+    }
+
+    private static MethodHandle findInvokeCleaner() {
+        try {
+            var unsafeClass = Class.forName("sun.misc.Unsafe");
+            var theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Unmaps the segment, which must not be accessed afterwards.
+     */
+    private static void unmap(ByteBuffer segment) throws IOException {
+        if (INVOKE_CLEANER == null)
+            return;
+        try {
+            INVOKE_CLEANER.invokeExact(segment);
+        } catch (Throwable e) {
+            throw new IOException("Cannot unmap the file", e);
+        }
+    }
+
+    @Override
+    public void write(long offset, byte[] buf, int off, int len) throws IOException {
+        checkWritable();
+        super.write(offset, buf, off, len);
+    }
+
+    @Override
+    public void writeInt(long offset, int v) throws IOException {
+        checkWritable();
+        super.writeInt(offset, v);
+    }
+
+    @Override
+    public void writeLong(long offset, long v) throws IOException {
+        checkWritable();
+        super.writeLong(offset, v);
+    }
+
+    private void checkWritable() throws IOException {
+        if (mapMode == FileChannel.MapMode.READ_ONLY)
+            throw new IOException("The device is read-only");
+    }
+
+    @Override
+    public void flush() {
+        for (var i = 0; i < segments.length; i++) {
+            if (dirty[i]) {
+                ((MappedByteBuffer) segments[i]).force();
+                dirty[i] = false;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        var oldSegments = segments;
+        segments = new ByteBuffer[0];
+        for (var segment : oldSegments)
+            unmap(segment);
+        file.close();
+    }
+}
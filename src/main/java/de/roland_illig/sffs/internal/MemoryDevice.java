@@ -0,0 +1,158 @@
+package de.roland_illig.sffs.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A device that keeps the whole image in direct byte buffers outside the Java heap.
+ * <p>
+ * The image can be loaded from a file and later be written back to a file, in a single sequential pass each. The file
+ * is replaced atomically, so that it keeps the previous image if writing fails.
+ */
+final class MemoryDevice extends SegmentedDevice {
+
+    private static final int MIN_CAPACITY = 4096;
+
+    /**
+     * The file to which the image is written back on close, or null.
+     */
+    private final File image;
+
+    /**
+     * The size of the image when it was last loaded or written back.
+     */
+    private long writtenSize;
+
+    MemoryDevice(File image, int segmentBits) {
+        super(segmentBits);
+        this.image = image;
+    }
+
+    /**
+     * Loads the image from the file.
+     *
+     * @param writeBack whether to write the image back to the file on close
+     */
+    static MemoryDevice load(File file, boolean writeBack) throws IOException {
+        var device = new MemoryDevice(writeBack ? file : null, MappedDevice.SEGMENT_BITS);
+        try (var raf = new RandomAccessFile(file, writeBack ? "rw" : "r")) {
+            var channel = raf.getChannel();
+            device.resize(channel.size());
+            var buffers = device.buffers();
+            while (channel.position() < device.size)
+                if (channel.read(buffers) < 0)
+                    throw new IOException("file shrunk during loading: " + file);
+        }
+        device.writtenSize = device.size;
+        return device;
+    }
+
+    @Override
+    void resize(long newSize) {
+        if (newSize < size) {
+            // The space beyond the end must read as zero when the device grows again.
+            var zero = new byte[(int) Math.min(size - newSize, 64 * 1024)];
+            for (var offset = newSize; offset < size; ) {
+                var index = (int) (offset >>> segmentBits);
+                var segment = segments[index];
+                var pos = (int) (offset & segmentMask);
+                var n = (int) Math.min(Math.min(zero.length, size - offset), segment.capacity() - pos);
+                segment.put(pos, zero, 0, n);
+                dirty[index] = true;
+                offset += n;
+            }
+        }
+
+        var newCount = segmentCount(newSize);
+        var oldCount = segments.length;
+        segments = Arrays.copyOf(segments, newCount);
+        dirty = Arrays.copyOf(dirty, newCount);
+        for (var i = Math.max(oldCount - 1, 0); i < newCount; i++)
+            segments[i] = withCapacity(segments[i], segmentLength(i, newSize));
+        size = newSize;
+    }
+
+    /**
+     * Returns a buffer that has at least the given capacity, growing geometrically up to the size of a segment.
+     */
+    private ByteBuffer withCapacity(ByteBuffer buf, int capacity) {
+        var oldCapacity = buf != null ? buf.capacity() : 0;
+        if (capacity <= oldCapacity)
+            return buf;
+
+        var newCapacity = (int) Math.min(segmentMask + 1, Math.max(capacity, Math.max(MIN_CAPACITY, 2L * oldCapacity)));
+        var grown = ByteBuffer.allocateDirect(newCapacity);
+        if (buf != null)
+            grown.put(0, buf, 0, oldCapacity);
+        return grown;
+    }
+
+    /**
+     * Writes the image to a temporary file in the same directory, in a single sequential pass, and then moves it over
+     * the file.
+     */
+    @Override
+    public void snapshot(File file) throws IOException {
+        var target = file.toPath().toAbsolutePath();
+        var tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (var channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                var buffers = buffers();
+                for (var written = 0L; written < size; )
+                    written += channel.write(buffers);
+                channel.force(true);
+            }
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Returns views on the segments, limited to the size of the device.
+     */
+    private ByteBuffer[] buffers() {
+        var buffers = new ByteBuffer[segments.length];
+        for (var i = 0; i < buffers.length; i++)
+            buffers[i] = segments[i].duplicate().clear().limit(segmentLength(i, size));
+        return buffers;
+    }
+
+    /**
+     * Writes the image back to the file, if it has been modified since it was last written.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (image == null || size == writtenSize && !isDirty())
+            return;
+        snapshot(image);
+        Arrays.fill(dirty, false);
+        writtenSize = size;
+    }
+
+    /**
+     * Does nothing, since the file is replaced with the whole image at once.
+     */
+    @Override
+    public void writeBarrier() {
+    }
+
+    private boolean isDirty() {
+        for (var d : dirty)
+            if (d)
+                return true;
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+}
@@ -2,6 +2,7 @@ package de.roland_illig.sffs.internal;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * The name of a directory entry.
@@ -15,9 +16,56 @@ final class Name {
     }
 
     String get() throws IOException {
+        return new String(getBytes(), StandardCharsets.UTF_8);
+    }
+
+    byte[] getBytes() throws IOException {
         var buf = new byte[block.getSize()];
         block.readFully(0, buf, 0, buf.length);
-        return new String(buf, StandardCharsets.UTF_8);
+        return buf;
+    }
+
+    /**
+     * Tells whether the name block contains the given UTF-8 encoded name, without allocating memory. A name of a
+     * different length is rejected based on the block size alone, without reading the name.
+     */
+    static boolean equals(Storage storage, long ref, byte[] name) throws IOException {
+        var size = storage.getBlockSize(16 * ref);
+        if (size != name.length)
+            return false;
+        var buf = storage.nameScratch(size);
+        storage.readFully(16 * ref + 8, buf, 0, size);
+        return Arrays.equals(buf, 0, size, name, 0, size);
+    }
+
+    /**
+     * Compares the name in the name block with the given UTF-8 encoded name, byte by byte, without allocating
+     * memory. Comparing the bytes yields the same order as comparing the code points.
+     */
+    static int compare(Storage storage, long ref, byte[] name) throws IOException {
+        var size = storage.getBlockSize(16 * ref);
+        var buf = storage.nameScratch(size);
+        storage.readFully(16 * ref + 8, buf, 0, size);
+        return Arrays.compareUnsigned(buf, 0, size, name, 0, name.length);
+    }
+
+    /**
+     * Returns the 32-bit FNV-1a hash of the UTF-8 encoded name, which determines the position of the name in a
+     * hashed directory.
+     */
+    static int hash(String name) {
+        return hash(name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static int hash(byte[] name) {
+        return hash(name, 0, name.length);
+    }
+
+    static int hash(byte[] name, int off, int len) {
+        var hash = 0x811C_9DC5;
+        for (var i = off; i < off + len; i++)
+            hash = (hash ^ (name[i] & 0xFF)) * 0x0100_0193;
+        return hash;
     }
 
     static void check(String name) throws IOException {
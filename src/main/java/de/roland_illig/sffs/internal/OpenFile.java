@@ -1,6 +1,7 @@
 package de.roland_illig.sffs.internal;
 
 import java.io.IOException;
+import java.util.Set;
 
 /**
  * A file that is currently opened.
@@ -9,22 +10,51 @@ import java.io.IOException;
  * <p>
  * On POSIX, open files can be removed, they just lose their name, but their data can still be read or written. When
  * the file is not open anymore, the file data gets deallocated as well.
+ * <p>
+ * Written data is collected in a buffer and only passed to the regular file when the buffer is full, when the data
+ * is not contiguous, or on flush or close. This way, the chunks of a file that is written in small pieces are
+ * allocated in larger runs. A full buffer is passed up to a multiple of the buffer size, so that the extents of a file
+ * that is written sequentially start at such a multiple, which allows to raise the chunk size without moving data.
  */
 final class OpenFile implements de.roland_illig.sffs.OpenFile {
 
+    static final int BUFFER_SIZE = 64 * 1024;
+
     private final RegularFile regularFile;
     private final boolean canRead;
     private final boolean canWrite;
 
     private long offset;
 
-    OpenFile(RegularFile regularFile, String mode) throws IOException {
+    private byte[] buffer;
+    private long bufferOffset;
+    private int bufferLength;
+
+    /**
+     * The open files of the filesystem, or null.
+     */
+    private Set<OpenFile> openFiles;
+
+    /**
+     * @param expectedSize the expected size of the file when it is written, or 0 if unknown
+     */
+    OpenFile(RegularFile regularFile, String mode, long expectedSize) throws IOException {
         this.regularFile = regularFile;
         this.canRead = mode.equals("r");
         this.canWrite = mode.equals("w") || mode.equals("a");
-        // TODO: register the open file in the filesystem
-        if (this.canWrite)
-            regularFile.setSize(0);
+        if (this.canWrite) {
+            regularFile.truncate();
+            regularFile.expectSize(expectedSize);
+        }
+    }
+
+    void register(Set<OpenFile> openFiles) {
+        openFiles.add(this);
+        this.openFiles = openFiles;
+    }
+
+    long getRef() {
+        return regularFile.getRef();
     }
 
     @Override
@@ -40,13 +70,46 @@ final class OpenFile implements de.roland_illig.sffs.OpenFile {
     public void write(byte[] buf, int off, int len) throws IOException {
         if (!canWrite)
             throw new IOException("read-only");
-        regularFile.write(offset, buf, off, len);
-        offset += len;
+        regularFile.checkWrite(offset, off, len);
+
+        if (bufferLength > 0 && (offset != bufferOffset + bufferLength || len >= BUFFER_SIZE))
+            flush();
+        if (len >= BUFFER_SIZE) {
+            regularFile.write(offset, buf, off, len);
+            offset += len;
+            return;
+        }
+
+        while (len > 0) {
+            if (buffer == null) buffer = new byte[BUFFER_SIZE];
+            if (bufferLength == 0) bufferOffset = offset;
+            var n = Math.min(len, BUFFER_SIZE - bufferLength);
+            System.arraycopy(buf, off, buffer, bufferLength, n);
+            bufferLength += n;
+            offset += n;
+            off += n;
+            len -= n;
+            if (bufferLength == BUFFER_SIZE)
+                flushAligned();
+        }
+    }
+
+    /**
+     * Writes the data of the full buffer up to the last multiple of the buffer size and keeps the rest.
+     */
+    private void flushAligned() throws IOException {
+        var n = (int) ((bufferOffset + bufferLength) / BUFFER_SIZE * BUFFER_SIZE - bufferOffset);
+        regularFile.write(bufferOffset, buffer, 0, n);
+        System.arraycopy(buffer, n, buffer, 0, bufferLength - n);
+        bufferOffset += n;
+        bufferLength -= n;
     }
 
     @Override
     public void append(byte[] buf, int off, int len) throws IOException {
-        offset = regularFile.getSize();
+        offset = bufferLength > 0
+                ? Math.max(regularFile.getSize(), bufferOffset + bufferLength)
+                : regularFile.getSize();
         write(buf, off, len);
     }
 
@@ -60,8 +123,18 @@ final class OpenFile implements de.roland_illig.sffs.OpenFile {
         return offset;
     }
 
+    @Override
+    public void flush() throws IOException {
+        if (bufferLength == 0)
+            return;
+        regularFile.write(bufferOffset, buffer, 0, bufferLength);
+        bufferLength = 0;
+    }
+
     @Override
     public void close() throws IOException {
-        // TODO: unregister the open file from the filesystem
+        flush();
+        if (openFiles != null)
+            openFiles.remove(this);
     }
 }
@@ -1,170 +1,778 @@
 package de.roland_illig.sffs.internal;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 
 /**
  * A sequence of bytes on the disk.
+ * <p>
+ * A small file stores its data directly in its block, which grows in place as the file grows. A large file stores its
+ * data in chunks of equal size. Chunks that are adjacent in the file are stored together in a single block, called an
+ * extent, so that they are read and written with a single access to the storage. The block of an extent only contains
+ * the data up to the last byte that has been written to its last chunk, so that the tail of a file does not occupy a
+ * whole chunk. The extents are sorted by their first chunk. As long as they fit, they are listed in the block of the
+ * file. Beyond that, they are stored in the leaves of a tree of extent nodes, whose root is the block of the file, so
+ * that finding an extent only reads a single path through the tree.
+ * <p>
+ * In the older format, each chunk of a large file has a block of its own, and the block of the file contains a
+ * reference to each chunk. Such a file is converted to extents on its first modification.
  */
 final class RegularFile {
 
-    private final Block block;
+    static final int NODE_SIZE = 4096 - 8;
+
+    /**
+     * The size of the block of a small file beyond which the file becomes a large file.
+     */
+    private static final int MAX_SMALL_BLOCK_SIZE = 4096;
+
+    /**
+     * The size of the block of an empty file, which is enough for the header and a single extent.
+     */
+    private static final int MIN_BLOCK_SIZE = Offsets.DATA + 16;
+
+    /**
+     * The size of the block of a file that becomes a large file, which is enough for the header and a few extents.
+     * The block doubles in place as extents are added, up to {@link #MAX_SMALL_BLOCK_SIZE}.
+     */
+    private static final int ROOT_BLOCK_SIZE = Offsets.DATA + 4 * 16;
+
+    private static final int MIN_CHUNK_SIZE = 4096;
+    private static final int MAX_CHUNK_SIZE = 1 << 20;
+
+    /**
+     * The maximum size of a file, so that the index of each chunk fits into 31 bits, even for the smallest chunks.
+     */
+    static final long MAX_SIZE = (long) Integer.MAX_VALUE * MIN_CHUNK_SIZE;
+
+    /**
+     * The maximum size of the data in an extent, so that the size of its block fits into 31 bits.
+     */
+    private static final int MAX_EXTENT_SIZE = 1 << 30;
+
+    private Block block;
 
     RegularFile(Block block) throws IOException {
         this.block = block.checkType(BlockType.REGULAR);
     }
 
+    /**
+     * Chooses the size of the block for a new file, which is either small enough for the data of the file or large
+     * enough for the first few extents.
+     *
+     * @param expectedSize the expected size of the file, or 0 if unknown
+     */
+    static int blockSize(long expectedSize) {
+        var size = Offsets.DATA + expectedSize;
+        if (size > MAX_SMALL_BLOCK_SIZE)
+            return ROOT_BLOCK_SIZE;
+        var rounded = (int) SffsUtil.blockEnd(0, (int) Math.max(size, MIN_BLOCK_SIZE)) - 8;
+        return Math.min(rounded, MAX_SMALL_BLOCK_SIZE);
+    }
+
+    /**
+     * Grows the block of the file in place, which is not possible if the space after the block is in use.
+     *
+     * @return whether the block has been grown
+     */
+    private boolean grow(int size) throws IOException {
+        var grown = block.storage.grow(block, size);
+        if (grown != null)
+            block = grown;
+        return grown != null;
+    }
+
+    /**
+     * Since the block of a small file grows in place, another open file may have grown it in the meantime.
+     */
+    private void refresh() throws IOException {
+        if (block.storage.getBlockSize(16 * block.getRef()) != block.getSize())
+            block = new Block(block.storage, 16 * block.getRef());
+    }
+
+    private interface Offsets {
+        int SIZE = 0;
+        int CHUNK_SIZE = 8;
+        int ENTRIES = 12;
+        int DEPTH = 16;
+        int DATA = 24;
+
+        // The fields of an extent node.
+
+        int NODE_ENTRIES = 0;
+        int NODE_DATA = 8;
+
+        // The fields of an extent. In an inner node, the count is 0 and the reference points to the child node.
+
+        int FIRST = 0;
+        int COUNT = 4;
+        int REF = 8;
+
+        /**
+         * In the older format, the references to the chunks follow each other directly.
+         */
+        static int chunk(int i) {
+            return Math.addExact(DATA, Math.multiplyExact(i, 8));
+        }
+    }
+
+    /**
+     * The location of an extent in a leaf, together with the first chunk of the following extent.
+     *
+     * @param pos  the position of the extent in the leaf, or -1 if there is no extent
+     * @param next the first chunk of the following extent, or {@link Integer#MAX_VALUE}
+     */
+    private record Extent(Block node, int pos, int next) {
+
+        boolean exists() {
+            return pos != -1;
+        }
+
+        int first() throws IOException {
+            return node.readInt(pos + Offsets.FIRST);
+        }
+
+        int count() throws IOException {
+            return node.readInt(pos + Offsets.COUNT);
+        }
+
+        Block data() throws IOException {
+            return node.block(node.readRef(pos + Offsets.REF), BlockType.CHUNK);
+        }
+
+        long start(int chunkSize) throws IOException {
+            return (long) first() * chunkSize;
+        }
+
+        long end(int chunkSize) throws IOException {
+            return ((long) first() + count()) * chunkSize;
+        }
+
+        /**
+         * @return the end of the data that is stored in the block of the extent
+         */
+        long dataEnd(int chunkSize) throws IOException {
+            return start(chunkSize) + data().getSize() - 8;
+        }
+    }
+
     long getSize() throws IOException {
-        return block.readLong(0);
+        return block.readLong(Offsets.SIZE);
     }
 
     void setSize(long size) throws IOException {
-        block.writeLong(0, size);
+        block.writeLong(Offsets.SIZE, size);
     }
 
     private int getChunkSize() throws IOException {
-        return block.readInt(8);
+        return block.readInt(Offsets.CHUNK_SIZE);
     }
 
     private void setChunkSize(int chunkSize) throws IOException {
-        block.writeInt(8, chunkSize);
+        block.writeInt(Offsets.CHUNK_SIZE, chunkSize);
+    }
+
+    /**
+     * @return the number of levels of extent nodes below the block of the file, 0 if the extents are listed directly
+     * in the block of the file
+     */
+    private int getDepth() throws IOException {
+        return block.readInt(Offsets.DEPTH);
     }
 
-    private Block getChunkForReading(int chunkIndex) throws IOException {
-        var ref = block.readRef(chunkPos(chunkIndex));
-        return ref != 0 ? block.block(ref, BlockType.CHUNK) : null;
+    private int count(Block node) throws IOException {
+        return node.readInt(node == block ? Offsets.ENTRIES : Offsets.NODE_ENTRIES);
     }
 
-    private Block getChunkForWriting(int chunkIndex) throws IOException {
-        var ref = block.readRef(chunkPos(chunkIndex));
-        if (ref != 0) return block.block(ref, BlockType.CHUNK);
-        var block = this.block.storage.allocateChunk(getChunkSize());
-        setChunk(chunkIndex, block);
-        return block;
+    private void setCount(Block node, int count) throws IOException {
+        node.writeInt(node == block ? Offsets.ENTRIES : Offsets.NODE_ENTRIES, count);
     }
 
-    private int chunkPos(int chunkIndex) {
-        return Math.addExact(24, Math.multiplyExact(chunkIndex, 8));
+    private int entry(Block node, int i) {
+        return (node == block ? Offsets.DATA : Offsets.NODE_DATA) + 16 * i;
     }
 
-    private void setChunk(int chunkIndex, Block chunk) throws IOException {
-        block.writeRef(chunkPos(chunkIndex), chunk);
+    private int capacity(Block node) {
+        return (node.getSize() - entry(node, 0)) / 16;
+    }
+
+    private static int capacity(int rootSize) {
+        return (rootSize - Offsets.DATA) / 16;
+    }
+
+    private int first(Block node, int i) throws IOException {
+        return node.readInt(entry(node, i) + Offsets.FIRST);
+    }
+
+    private Block child(Block node, int i) throws IOException {
+        return node.block(node.readRef(entry(node, i) + Offsets.REF), BlockType.EXTENT_NODE);
+    }
+
+    /**
+     * @return the last entry of the node that starts at or before the given chunk, or -1
+     */
+    private int search(Block node, int chunk) throws IOException {
+        int lo = 0, hi = count(node);
+        while (lo < hi) {
+            var mid = (lo + hi) >>> 1;
+            if (first(node, mid) <= chunk)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo - 1;
+    }
+
+    /**
+     * Finds the last extent that starts at or before the given chunk.
+     * <p>
+     * In an inner node, the first chunk of each entry except the first is the first chunk of its subtree. The first
+     * entry covers all chunks before the second entry.
+     */
+    private Extent find(int chunk) throws IOException {
+        var node = block;
+        var next = Integer.MAX_VALUE;
+        for (var height = getDepth(); ; height--) {
+            var i = search(node, chunk);
+            if (height > 0)
+                i = Math.max(i, 0);
+            if (i + 1 < count(node))
+                next = first(node, i + 1);
+            if (height == 0)
+                return new Extent(node, i >= 0 ? entry(node, i) : -1, next);
+            node = child(node, i);
+        }
     }
 
     int read(long offset, byte[] buf, int off, int len) throws IOException {
         SffsUtil.checkRange(off, len, Integer.MAX_VALUE);
         if (offset < 0)
             throw new IndexOutOfBoundsException(offset);
-        if (24 + offset + len > Integer.MAX_VALUE)
-            throw new IndexOutOfBoundsException(offset + len);
 
         if (len == 0)
             return 0;
-        var maxLen = Math.toIntExact(Math.min(len, getSize() - offset));
-        if (maxLen <= 0)
+        refresh();
+        var available = getSize() - offset;
+        if (available <= 0)
             return -1;
+        var maxLen = (int) Math.min(len, available);
 
         if (getChunkSize() == 0)
-            return block.read(24 + (int) offset, buf, off, maxLen);
-        else
-            return readLarge(offset, buf, off, maxLen);
+            return block.read(Offsets.DATA + (int) offset, buf, off, maxLen);
+        if (getDepth() == 0 && count(block) == 0)
+            return readLegacy(offset, buf, off, maxLen);
+        return readLarge(offset, buf, off, maxLen);
     }
 
     private int readLarge(long offset, byte[] buf, int off, int len) throws IOException {
+        var chunkSize = getChunkSize();
+        var end = offset + len;
+        for (var pos = offset; pos < end; ) {
+            var extent = find((int) (pos / chunkSize));
+            var bufPos = off + (int) (pos - offset);
+            int n;
+            if (extent.exists() && pos < extent.dataEnd(chunkSize)) {
+                n = (int) (Math.min(end, extent.dataEnd(chunkSize)) - pos);
+                extent.data().readFully(8 + (int) (pos - extent.start(chunkSize)), buf, bufPos, n);
+            } else {
+                var zeroEnd = extent.exists() && pos < extent.end(chunkSize)
+                        ? extent.end(chunkSize)
+                        : (long) extent.next() * chunkSize;
+                n = (int) (Math.min(end, zeroEnd) - pos);
+                Arrays.fill(buf, bufPos, bufPos + n, (byte) 0);
+            }
+            pos += n;
+        }
+        return len;
+    }
+
+    private int readLegacy(long offset, byte[] buf, int off, int len) throws IOException {
         var end = offset + len;
         var chunkSize = getChunkSize();
         var chunkStartIndex = Math.toIntExact(offset / chunkSize);
         var chunkEndIndex = Math.toIntExact(end / chunkSize);
 
         if (chunkStartIndex == chunkEndIndex)
-            return readFromChunk(chunkStartIndex, (int) (offset % chunkSize), buf, off, len);
+            return readFromLegacyChunk(chunkStartIndex, (int) (offset % chunkSize), buf, off, len);
 
         var partOff = (int) (offset % chunkSize);
         var partLen = chunkSize - partOff;
 
-        var totalRead = readFromChunk(chunkStartIndex, partOff, buf, off, partLen);
+        var totalRead = readFromLegacyChunk(chunkStartIndex, partOff, buf, off, partLen);
         for (var i = chunkStartIndex + 1; i < chunkEndIndex; i++)
-            totalRead += readFromChunk(i, 0, buf, off + totalRead, chunkSize);
+            totalRead += readFromLegacyChunk(i, 0, buf, off + totalRead, chunkSize);
         if (totalRead < len)
-            totalRead += readFromChunk(chunkEndIndex, 0, buf, off + totalRead, len - totalRead);
+            totalRead += readFromLegacyChunk(chunkEndIndex, 0, buf, off + totalRead, len - totalRead);
 
         return totalRead;
     }
 
-    private int readFromChunk(int chunkIndex, int chunkOffset, byte[] buf, int off, int len) throws IOException {
-        var chunk = getChunkForReading(chunkIndex);
-        if (chunk != null) return chunk.read(8 + chunkOffset, buf, off, len);
+    private int readFromLegacyChunk(int chunkIndex, int chunkOffset, byte[] buf, int off, int len)
+            throws IOException {
+        var pos = Offsets.chunk(chunkIndex);
+        var ref = pos < block.getSize() ? block.readRef(pos) : 0;
+        if (ref != 0) return block.block(ref, BlockType.CHUNK).read(8 + chunkOffset, buf, off, len);
         Arrays.fill(buf, off, off + len, (byte) 0);
         return len;
     }
 
     void write(long offset, byte[] buf, int off, int len) throws IOException {
+        checkWrite(offset, off, len);
+        refresh();
+
+        var end = offset + len;
+        if (getChunkSize() == 0 && Offsets.DATA + end > block.getSize()
+                && (Offsets.DATA + end > MAX_SMALL_BLOCK_SIZE || !grow(blockSize(end))))
+            enlarge(end);
+
+        if (getChunkSize() == 0)
+            block.write(Offsets.DATA + (int) offset, buf, off, len);
+        else
+            writeLarge(offset, buf, off, len);
+
+        if (end > getSize())
+            setSize(end);
+    }
+
+    /**
+     * Checks whether the data can be written, without modifying the file.
+     */
+    void checkWrite(long offset, int off, int len) {
         SffsUtil.checkRange(off, len, Integer.MAX_VALUE);
-        var end = 24 + offset + len;
         if (offset < 0)
             throw new IndexOutOfBoundsException(offset);
-        if (end > Integer.MAX_VALUE)
+        if (offset > MAX_SIZE - len)
             throw new IndexOutOfBoundsException(offset + len);
+    }
 
-        if (getChunkSize() == 0 && end > block.getSize())
-            enlarge();
+    /**
+     * Chooses the layout of the empty file, based on its expected size, so that the chunk size need not be guessed
+     * from the first write that exceeds the block of the file.
+     */
+    void expectSize(long size) throws IOException {
+        refresh();
+        if (getSize() == 0 && getChunkSize() == 0 && Offsets.DATA + size > block.getSize())
+            setChunkSize(chunkSize(size));
+    }
 
-        if (getChunkSize() == 0)
-            block.write(24 + (int) offset, buf, off, len);
-        else
-            writeLarge(offset, buf, off, len);
+    /**
+     * Chooses the chunk size for a file of the given size, so that the file has at least 256 chunks, unless the
+     * chunks would be smaller than 4 KiB. Larger chunks need fewer extents and fewer allocations when the file is
+     * written, while smaller chunks allocate less space when the file is written in random order.
+     */
+    static int chunkSize(long size) {
+        var chunkSize = Long.highestOneBit(Math.max(size / 256, 1));
+        return (int) Math.max(MIN_CHUNK_SIZE, Math.min(chunkSize, MAX_CHUNK_SIZE));
+    }
 
-        if (offset + len > getSize())
-            setSize(offset + len);
+    /**
+     * Removes the data of the file, so that it can be written from scratch.
+     */
+    void truncate() throws IOException {
+        refresh();
+        if (getSize() == 0 && getChunkSize() == 0)
+            return;
+        freeChunks();
+        var zero = new byte[block.getSize() - 8];
+        block.write(8, zero, 0, zero.length);
+        setSize(0);
     }
 
     void delete() throws IOException {
-        if (getChunkSize() != 0) {
-            for (int pos = 24, size = block.getSize(); pos < size; pos += 8) {
-                var ref = block.readRef(pos);
-                if (ref != 0) block.block(ref).free();
+        refresh();
+        freeChunks();
+        block.free();
+    }
+
+    long getRef() {
+        return block.getRef();
+    }
+
+    /**
+     * The progress of moving the extents of a file toward the beginning of the storage.
+     *
+     * @param next the first chunk of the extents that have not been visited yet, or -1 if all have been visited
+     * @param work the number of visited extents and moved extent nodes
+     */
+    record Progress(int next, int work) {
+    }
+
+    /**
+     * Moves the extents from the given chunk on into adjacent space toward the beginning of the storage, visiting at
+     * most the given number of extents, so that the extents of a large file are moved in several steps. When starting
+     * at the beginning of the file, the extent nodes are moved first.
+     * <p>
+     * The visited extents are moved directly after the preceding extent if there is free space, otherwise to the free
+     * block that is nearest to the beginning of the storage. The first extents of the file are only moved to a free
+     * block that has room for the whole file. If the visited extents are not adjacent yet, they may also be moved to
+     * the end of the storage.
+     */
+    Progress moveChunksDown(int start, int maxExtents) throws IOException {
+        if (getChunkSize() == 0)
+            return new Progress(-1, 0);
+        convertLegacy();
+
+        var work = start == 0 ? moveNodesDown(block, getDepth()) : 0;
+        var extents = new ArrayList<Extent>();
+        var extent = find(start);
+        if (!extent.exists() || extent.first() < start)
+            extent = extent.next() != Integer.MAX_VALUE ? find(extent.next()) : null;
+        for (; extent != null && extents.size() < maxExtents; work++) {
+            extents.add(extent);
+            extent = extent.next() != Integer.MAX_VALUE ? find(extent.next()) : null;
+        }
+        var next = extent != null ? extent.first() : -1;
+        if (extents.isEmpty())
+            return new Progress(next, work);
+
+        var offsets = new long[extents.size()];
+        var adjacent = true;
+        for (var i = 0; i < offsets.length; i++) {
+            offsets[i] = 16 * extents.get(i).data().getRef();
+            if (i > 0)
+                adjacent &= offsets[i] == blockEnd(offsets[i - 1]);
+        }
+        var limit = adjacent ? offsets[0] : Long.MAX_VALUE;
+
+        var first = extents.get(0).first();
+        var previous = first > 0 ? find(first - 1) : null;
+        long[] moved;
+        if (previous == null || !previous.exists()) {
+            var space = next != -1 ? getSize() - (long) first * getChunkSize() : 0;
+            moved = block.storage.moveDown(offsets, limit, space);
+        } else {
+            var previousEnd = blockEnd(16 * previous.data().getRef());
+            if (adjacent && offsets[0] == previousEnd)
+                return new Progress(next, work);
+            moved = block.storage.moveTo(offsets, previousEnd);
+            if (moved == null)
+                moved = block.storage.moveDown(offsets, limit);
+        }
+
+        if (moved != null)
+            for (var i = 0; i < moved.length; i++)
+                extents.get(i).node().writeRef(extents.get(i).pos() + Offsets.REF, moved[i] / 16);
+        return new Progress(next, work);
+    }
+
+    private long blockEnd(long offset) throws IOException {
+        return SffsUtil.blockEnd(offset, block.storage.getBlockSize(offset));
+    }
+
+    /**
+     * Moves the nodes below the given node toward the beginning of the storage.
+     *
+     * @return the number of moved nodes
+     */
+    private int moveNodesDown(Block node, int height) throws IOException {
+        if (height == 0)
+            return 0;
+
+        var moved = 0;
+        for (int i = 0, n = count(node); i < n; i++) {
+            var child = child(node, i);
+            var movedChild = block.storage.moveDown(child);
+            if (movedChild != null) {
+                node.writeRef(entry(node, i) + Offsets.REF, movedChild);
+                child = movedChild;
+                moved++;
             }
+            moved += moveNodesDown(child, height - 1);
         }
-        block.free();
+        return moved;
+    }
+
+    private void freeChunks() throws IOException {
+        if (getChunkSize() == 0)
+            return;
+
+        if (getDepth() != 0 || count(block) != 0) {
+            freeExtents(block, getDepth());
+            return;
+        }
+
+        for (int pos = Offsets.DATA, size = block.getSize(); pos < size; pos += 8) {
+            var ref = block.readRef(pos);
+            if (ref != 0) block.block(ref).free();
+        }
+    }
+
+    private void freeExtents(Block node, int height) throws IOException {
+        for (int i = 0, n = count(node); i < n; i++) {
+            if (height == 0) {
+                node.block(node.readRef(entry(node, i) + Offsets.REF), BlockType.CHUNK).free();
+            } else {
+                var child = child(node, i);
+                freeExtents(child, height - 1);
+                child.free();
+            }
+        }
+    }
+
+    /**
+     * Converts a large file from the older format to extents, each of which contains a single chunk.
+     */
+    private void convertLegacy() throws IOException {
+        if (getDepth() != 0 || count(block) != 0)
+            return;
+
+        var size = block.getSize();
+        var chunks = new int[(size - Offsets.DATA) / 8];
+        var refs = new long[chunks.length];
+        var n = 0;
+        for (var i = 0; i < chunks.length; i++) {
+            var ref = block.readRef(Offsets.chunk(i));
+            if (ref != 0) {
+                chunks[n] = i;
+                refs[n++] = ref;
+            }
+        }
+        if (n == 0)
+            return;
+
+        var zero = new byte[size - Offsets.DATA];
+        block.write(Offsets.DATA, zero, 0, zero.length);
+        for (var i = 0; i < n; i++)
+            insert(chunks[i], 1, refs[i]);
     }
 
     private void writeLarge(long offset, byte[] buf, int off, int len) throws IOException {
-        var end = offset + len;
+        if (len == 0)
+            return;
+        convertLegacy();
+        raiseChunkSize(offset + len);
+
         var chunkSize = getChunkSize();
-        var chunkStartIndex = Math.toIntExact(offset / chunkSize);
-        var chunkEndIndex = Math.toIntExact(end / chunkSize);
+        var end = offset + len;
+        for (var pos = offset; pos < end; ) {
+            var extent = find((int) (pos / chunkSize));
+            if (!extent.exists() || pos >= extent.end(chunkSize))
+                extent = allocateExtent(extent, pos, end);
+            if (Math.min(end, extent.end(chunkSize)) > extent.dataEnd(chunkSize))
+                extent = fill(extent, pos, Math.min(end, extent.end(chunkSize)));
+
+            var n = (int) (Math.min(end, extent.dataEnd(chunkSize)) - pos);
+            extent.data().write(8 + (int) (pos - extent.start(chunkSize)), buf, off + (int) (pos - offset), n);
+            pos += n;
+        }
+    }
 
-        if (chunkStartIndex == chunkEndIndex) {
-            writeToChunk(chunkStartIndex, (int) (offset % chunkSize), buf, off, len);
+    /**
+     * Raises the chunk size when the file grows beyond the size for which its chunk size has been chosen, which for a
+     * file that is written sequentially is only a guess from its first writes.
+     * <p>
+     * Since only the last chunk of an extent may be partial, the extents can be described by fewer and larger chunks
+     * without moving their data, as long as each of them starts at a multiple of the larger chunk size. This is the
+     * case for a file whose single extent has grown in place, and for a file that is written sequentially through an
+     * {@link OpenFile}, which passes its data in aligned pieces. Otherwise, the chunk size stays, since moving the data
+     * would leave free space behind; the expected size of the file avoids this.
+     */
+    private void raiseChunkSize(long end) throws IOException {
+        var chunkSize = getChunkSize();
+        if (chunkSize(end) <= Math.max(chunkSize, chunkSize(getSize())))
             return;
+
+        for (var newChunkSize = chunkSize(end); newChunkSize > chunkSize; newChunkSize /= 2) {
+            var factor = newChunkSize / chunkSize;
+            if (aligned(block, getDepth(), factor)) {
+                rescale(block, getDepth(), factor);
+                setChunkSize(newChunkSize);
+                return;
+            }
         }
+    }
 
-        var partOff = (int) (offset % chunkSize);
-        var partLen = chunkSize - partOff;
+    /**
+     * Tests whether each entry in the subtree of the node starts at a multiple of the given number of chunks.
+     */
+    private boolean aligned(Block node, int height, int factor) throws IOException {
+        for (int i = 0, n = count(node); i < n; i++)
+            if (first(node, i) % factor != 0 || height > 0 && !aligned(child(node, i), height - 1, factor))
+                return false;
+        return true;
+    }
+
+    /**
+     * Describes the entries in the subtree of the node in chunks that are larger by the given factor.
+     */
+    private void rescale(Block node, int height, int factor) throws IOException {
+        for (int i = 0, n = count(node); i < n; i++) {
+            var pos = entry(node, i);
+            node.writeInt(pos + Offsets.FIRST, node.readInt(pos + Offsets.FIRST) / factor);
+            node.writeInt(pos + Offsets.COUNT, (node.readInt(pos + Offsets.COUNT) + factor - 1) / factor);
+            if (height > 0)
+                rescale(child(node, i), height - 1, factor);
+        }
+    }
+
+    /**
+     * Allocates the chunks from the given offset up to the given end, but not beyond the next extent. If possible,
+     * the given extent is grown in place, so that a file that is written sequentially ends up in a single extent.
+     * Otherwise, a new extent is added after the given extent.
+     *
+     * @return the extent that contains the offset
+     */
+    private Extent allocateExtent(Extent extent, long offset, long end) throws IOException {
+        var chunkSize = getChunkSize();
+        var first = (int) (offset / chunkSize);
+        var limit = (int) Math.min((end - 1) / chunkSize + 1, extent.next());
+
+        if (extent.exists() && extent.first() + extent.count() == first) {
+            var chunks = Math.min(limit - extent.first(), MAX_EXTENT_SIZE / chunkSize);
+            if (chunks > extent.count()
+                    && block.storage.grow(extent.data(), 8 + dataSize(extent.first(), chunks, end)) != null) {
+                extent.node().writeInt(extent.pos() + Offsets.COUNT, chunks);
+                return extent;
+            }
+        }
+
+        var chunks = Math.min(limit - first, MAX_EXTENT_SIZE / chunkSize);
+        var data = block.storage.allocateChunk(dataSize(first, chunks, end));
+        insert(first, chunks, data.getRef());
+        return find(first);
+    }
 
-        writeToChunk(chunkStartIndex, partOff, buf, off, partLen);
-        var totalWritten = partLen;
+    /**
+     * Returns the size of the data that a block for the given chunks needs to store the file up to the given end,
+     * rounded up to the block alignment.
+     */
+    private int dataSize(int first, int chunks, long end) throws IOException {
+        var chunkSize = getChunkSize();
+        var full = chunks * chunkSize;
+        var needed = Math.min(end - (long) first * chunkSize, full);
+        return (int) Math.min(needed + SffsUtil.padding((int) needed), full);
+    }
 
-        for (var i = chunkStartIndex + 1; i < chunkEndIndex; i++) {
-            writeToChunk(i, 0, buf, off + totalWritten, chunkSize);
-            totalWritten += chunkSize;
+    /**
+     * Grows the block of the extent so that it contains the data up to the given end. If the block cannot grow in
+     * place, its last chunk, which is the only one that is not completely stored, is moved to an extent of its own,
+     * so that at most a single chunk is copied.
+     *
+     * @return the extent that contains the given offset
+     */
+    private Extent fill(Extent extent, long offset, long end) throws IOException {
+        var chunkSize = getChunkSize();
+        var first = extent.first();
+        var count = extent.count();
+        var data = extent.data();
+        if (block.storage.grow(data, 8 + dataSize(first, count, end)) != null)
+            return extent;
+
+        var last = first + count - 1;
+        var tail = new byte[data.getSize() - 8 - (count - 1) * chunkSize];
+        data.readFully(8 + (count - 1) * chunkSize, tail, 0, tail.length);
+        var moved = block.storage.allocateChunk(dataSize(last, 1, end));
+        moved.write(8, tail, 0, tail.length);
+
+        if (count == 1) {
+            extent.node().writeRef(extent.pos() + Offsets.REF, moved);
+            data.free();
+            return extent;
         }
+        block.storage.shrink(data, BlockType.CHUNK, 8 + (count - 1) * chunkSize);
+        extent.node().writeInt(extent.pos() + Offsets.COUNT, count - 1);
+        insert(last, 1, moved.getRef());
+        return find((int) (offset / chunkSize));
+    }
 
-        if (totalWritten < len)
-            writeToChunk(chunkEndIndex, 0, buf, off + totalWritten, len - totalWritten);
+    private void insert(int first, int count, long ref) throws IOException {
+        insert(block, getDepth(), first, count, ref);
     }
 
-    private void writeToChunk(int chunkIndex, int chunkOffset, byte[] buf, int off, int len) throws IOException {
-        var chunk = getChunkForWriting(chunkIndex);
-        chunk.write(8 + chunkOffset, buf, off, len);
+    /**
+     * Inserts the entry into the subtree of the given node.
+     *
+     * @return the node that has been split off from the given node, or null
+     */
+    private Block insert(Block node, int height, int first, int count, long ref) throws IOException {
+        var i = search(node, first);
+        if (height == 0)
+            return insertAt(node, height, i + 1, first, count, ref);
+
+        i = Math.max(i, 0);
+        var split = insert(child(node, i), height - 1, first, count, ref);
+        if (split == null)
+            return null;
+        return insertAt(node, height, i + 1, first(split, 0), 0, split.getRef());
     }
 
-    private void enlarge() throws IOException {
+    /**
+     * Inserts the entry at the given index of the node. A full node is split into two. A full root is grown in place
+     * if possible, otherwise it is moved to a new node below the root first, which increases the depth of the tree.
+     * <p>
+     * When the entry is appended to a full node, the node stays full, and the new node only contains the new entry,
+     * so that a file that is written sequentially ends up with full nodes.
+     *
+     * @return the node that has been split off from the given node, or null
+     */
+    private Block insertAt(Block node, int height, int i, int first, int count, long ref) throws IOException {
+        var n = count(node);
+        if (n < capacity(node)) {
+            var pos = entry(node, i);
+            var following = new byte[entry(node, n) - pos];
+            node.readFully(pos, following, 0, following.length);
+            node.write(pos + 16, following, 0, following.length);
+            node.writeInt(pos + Offsets.FIRST, first);
+            node.writeInt(pos + Offsets.COUNT, count);
+            node.writeRef(pos + Offsets.REF, ref);
+            setCount(node, n + 1);
+            return null;
+        }
+
+        if (node == block && n < capacity(MAX_SMALL_BLOCK_SIZE)
+                && grow(Math.min(2 * block.getSize() + 8, MAX_SMALL_BLOCK_SIZE)))
+            return insertAt(block, height, i, first, count, ref);
+
+        if (node == block) {
+            var child = block.storage.allocateExtentNode(height);
+            moveEntries(block, 0, child, n);
+            insertAt(block, height + 1, 0, first(child, 0), 0, child.getRef());
+            block.writeInt(Offsets.DEPTH, height + 1);
+            var split = insertAt(child, height, i, first, count, ref);
+            if (split != null)
+                insertAt(block, height + 1, 1, first(split, 0), 0, split.getRef());
+            return null;
+        }
+
+        var mid = i == n ? n : n / 2;
+        var split = block.storage.allocateExtentNode(height);
+        moveEntries(node, mid, split, n - mid);
+        if (i < mid)
+            insertAt(node, height, i, first, count, ref);
+        else
+            insertAt(split, height, i - mid, first, count, ref);
+        return split;
+    }
+
+    /**
+     * Moves the last entries of the node to the empty node.
+     */
+    private void moveEntries(Block from, int start, Block to, int n) throws IOException {
+        var entries = new byte[16 * n];
+        from.readFully(entry(from, start), entries, 0, entries.length);
+        to.write(entry(to, 0), entries, 0, entries.length);
+        setCount(to, n);
+        from.write(entry(from, start), new byte[entries.length], 0, entries.length);
+        setCount(from, start);
+    }
+
+    /**
+     * Converts the small file to a large file. Without knowing the final size of the file, the end of the write that
+     * exceeds the block of the file is the best guess, which is corrected as the file grows, as far as its extents
+     * allow this, see {@link #raiseChunkSize}.
+     * <p>
+     * If possible, the block grows to have room for a few extents, and it doubles in place as more extents are added.
+     */
+    private void enlarge(long size) throws IOException {
+        if (block.getSize() < ROOT_BLOCK_SIZE)
+            grow(ROOT_BLOCK_SIZE);
+
         var data = new byte[Math.toIntExact(getSize())];
-        block.readFully(24, data, 0, data.length);
-        block.write(24, new byte[data.length], 0, data.length);
+        block.readFully(Offsets.DATA, data, 0, data.length);
+        block.write(Offsets.DATA, new byte[data.length], 0, data.length);
 
-        setChunkSize(4096);
+        setChunkSize(chunkSize(size));
 
         writeLarge(0, data, 0, data.length);
     }
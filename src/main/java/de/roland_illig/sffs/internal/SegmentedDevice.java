@@ -0,0 +1,166 @@
+package de.roland_illig.sffs.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A device whose content is held in byte buffers of equal size, the segments.
+ * <p>
+ * Each segment except for the last one is completely filled; the last segment may have spare capacity beyond the
+ * size of the device.
+ */
+abstract class SegmentedDevice implements Device {
+
+    final int segmentBits;
+    final long segmentMask;
+
+    ByteBuffer[] segments = new ByteBuffer[0];
+    boolean[] dirty = new boolean[0];
+    long size;
+
+    /**
+     * The buffer for reading and writing integer values that cross a segment boundary.
+     */
+    private final byte[] scratch = new byte[8];
+
+    SegmentedDevice(int segmentBits) {
+        this.segmentBits = segmentBits;
+        this.segmentMask = (1L << segmentBits) - 1;
+    }
+
+    /**
+     * Grows or shrinks the segments and the size of the device.
+     */
+    abstract void resize(long newSize) throws IOException;
+
+    int segmentCount(long size) {
+        return Math.toIntExact((size + segmentMask) >>> segmentBits);
+    }
+
+    int segmentLength(int index, long size) {
+        return (int) Math.min(segmentMask + 1, size - ((long) index << segmentBits));
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void setSize(long size) throws IOException {
+        if (size != this.size)
+            resize(size);
+    }
+
+    @Override
+    public int readInt(long offset) throws IOException {
+        checkRange(offset, 4);
+        var segment = segments[(int) (offset >>> segmentBits)];
+        var pos = (int) (offset & segmentMask);
+        if (pos <= segment.capacity() - 4)
+            return segment.getInt(pos);
+        get(offset, scratch, 0, 4);
+        return ByteBuffer.wrap(scratch).getInt(0);
+    }
+
+    @Override
+    public long readLong(long offset) throws IOException {
+        checkRange(offset, 8);
+        var segment = segments[(int) (offset >>> segmentBits)];
+        var pos = (int) (offset & segmentMask);
+        if (pos <= segment.capacity() - 8)
+            return segment.getLong(pos);
+        get(offset, scratch, 0, 8);
+        return ByteBuffer.wrap(scratch).getLong(0);
+    }
+
+    @Override
+    public int read(long offset, byte[] buf, int off, int len) {
+        if (len == 0)
+            return 0;
+        if (offset >= size)
+            return -1;
+        var n = (int) Math.min(len, size - offset);
+        get(offset, buf, off, n);
+        return n;
+    }
+
+    @Override
+    public void readFully(long offset, byte[] buf, int off, int len) throws IOException {
+        checkRange(offset, len);
+        get(offset, buf, off, len);
+    }
+
+    @Override
+    public void write(long offset, byte[] buf, int off, int len) throws IOException {
+        ensureSize(offset, len);
+        put(offset, buf, off, len);
+    }
+
+    @Override
+    public void writeInt(long offset, int v) throws IOException {
+        ensureSize(offset, 4);
+        var index = (int) (offset >>> segmentBits);
+        var segment = segments[index];
+        var pos = (int) (offset & segmentMask);
+        if (pos <= segment.capacity() - 4) {
+            segment.putInt(pos, v);
+            dirty[index] = true;
+            return;
+        }
+        ByteBuffer.wrap(scratch).putInt(0, v);
+        put(offset, scratch, 0, 4);
+    }
+
+    @Override
+    public void writeLong(long offset, long v) throws IOException {
+        ensureSize(offset, 8);
+        var index = (int) (offset >>> segmentBits);
+        var segment = segments[index];
+        var pos = (int) (offset & segmentMask);
+        if (pos <= segment.capacity() - 8) {
+            segment.putLong(pos, v);
+            dirty[index] = true;
+            return;
+        }
+        ByteBuffer.wrap(scratch).putLong(0, v);
+        put(offset, scratch, 0, 8);
+    }
+
+    private void get(long offset, byte[] buf, int off, int len) {
+        while (len > 0) {
+            var segment = segments[(int) (offset >>> segmentBits)];
+            var pos = (int) (offset & segmentMask);
+            var n = Math.min(len, segment.capacity() - pos);
+            segment.get(pos, buf, off, n);
+            offset += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void put(long offset, byte[] buf, int off, int len) {
+        while (len > 0) {
+            var index = (int) (offset >>> segmentBits);
+            var segment = segments[index];
+            var pos = (int) (offset & segmentMask);
+            var n = Math.min(len, segment.capacity() - pos);
+            segment.put(pos, buf, off, n);
+            dirty[index] = true;
+            offset += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void checkRange(long offset, int len) throws EOFException {
+        if (offset < 0 || offset + len > size)
+            throw new EOFException();
+    }
+
+    private void ensureSize(long offset, int len) throws IOException {
+        if (offset + len > size)
+            resize(offset + len);
+    }
+}
@@ -1,8 +1,11 @@
 package de.roland_illig.sffs.internal;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
 
 /**
  * Provides access to the underlying random access storage.
@@ -14,81 +17,271 @@ import java.nio.charset.StandardCharsets;
  */
 final class Storage implements AutoCloseable {
 
-    private final RandomAccessFile file;
+    /**
+     * The offset of the superblock field that refers to the first free block.
+     */
+    private static final long FIRST_FREE = 16;
+
+    /**
+     * The offset of the superblock field that refers to the bitmap of used space.
+     */
+    private static final long BITMAP = 24;
+
+    /**
+     * The offset of the superblock field that contains the size of the used space.
+     */
+    private static final long END = 32;
+
+    private static final long MIN_GROWTH = 64 * 1024;
+    private static final long MAX_GROWTH = 64 * 1024 * 1024;
+
+    private static final int INITIAL_BITMAP_SIZE = 64;
+
+    private static final int HEADER_CACHE_BITS = 12;
+
+    private static final byte[] ZERO = new byte[4096];
+
+    private final Device device;
+    private final FreeSpace freeSpace = new FreeSpace();
+
+    /**
+     * The headers of recently used blocks, indexed by a hash of their offset, so that resolving a block reference
+     * does not need to access the device. The headers of freed blocks are removed.
+     */
+    private final long[] headerOffsets = new long[1 << HEADER_CACHE_BITS];
+    private final BlockType[] headerTypes = new BlockType[1 << HEADER_CACHE_BITS];
+    private final int[] headerSizes = new int[1 << HEADER_CACHE_BITS];
+    private long headerHits;
+    private long headerMisses;
+
+    /**
+     * The results of looking up names in directories, maintained by {@link Directory}.
+     */
+    final DentryCache dentries = new DentryCache();
+
+    /**
+     * The buffer for reading the names that are compared with a searched name, to avoid allocating a new buffer for
+     * each comparison.
+     */
+    private byte[] nameScratch = new byte[64];
+
+    /**
+     * Whether the storage has been modified since the chain of free blocks was last written, which means that the
+     * chain is marked as outdated.
+     */
+    private boolean modified;
+
+    /**
+     * Whether the storage has been modified since it was opened.
+     */
+    private boolean changed;
+
+    /**
+     * The offset of the bitmap block, or 0 if the storage has been created without a bitmap.
+     */
+    private long bitmapOffset;
+
+    /**
+     * The end of the used space. The device is grown in large steps, so it may be larger.
+     */
+    private long end;
+
+    /**
+     * Whether the superblock records the end of the used space. Older storages take the end from the size of the
+     * device instead, so their device is not grown beyond the used space.
+     */
+    private final boolean storesEnd;
+
+    /**
+     * The space between the end of the used space and this offset may contain data from freed blocks.
+     */
+    private long dirtyEnd;
 
     Storage(RandomAccessFile file) throws IOException {
-        this.file = file;
-        if (file.length() == 0) init();
+        this(new ChannelDevice(file));
+    }
+
+    Storage(Device device) throws IOException {
+        this.device = device;
+        Arrays.fill(headerOffsets, -1);
+        if (device.size() == 0) init();
+        var superSize = readInt(4);
+        if (superSize >= 24) bitmapOffset = 16 * readRef(BITMAP);
+        storesEnd = superSize >= 32;
+        end = storesEnd ? readLong(END) : device.size();
+        if (end < 0 || end > device.size() || end % 16 != 0)
+            throw new IOException("Invalid size of the used space " + end);
+        dirtyEnd = device.size();
+        loadFreeSpace();
     }
 
     int readInt(long offset) throws IOException {
-        file.seek(offset);
-        return file.readInt();
+        return device.readInt(offset);
     }
 
     long readLong(long offset) throws IOException {
-        file.seek(offset);
-        return file.readLong();
+        return device.readLong(offset);
     }
 
     long readRef(long offset) throws IOException {
-        file.seek(offset);
-        return file.readLong();
+        return device.readLong(offset);
     }
 
     int read(long offset, byte[] buf, int off, int len) throws IOException {
-        file.seek(offset);
-        return file.read(buf, off, len);
+        return device.read(offset, buf, off, len);
     }
 
     void readFully(long offset, byte[] buf, int off, int len) throws IOException {
-        file.seek(offset);
-        file.readFully(buf, off, len);
+        device.readFully(offset, buf, off, len);
+    }
+
+    /**
+     * Returns the buffer for reading a name of the given size. The buffer is overwritten by the next call.
+     */
+    byte[] nameScratch(int size) {
+        if (nameScratch.length < size)
+            nameScratch = new byte[Math.max(size, 2 * nameScratch.length)];
+        return nameScratch;
+    }
+
+    BlockType getBlockType(long offset) throws IOException {
+        return headerTypes[headerSlot(offset)];
+    }
+
+    int getBlockSize(long offset) throws IOException {
+        return headerSizes[headerSlot(offset)];
+    }
+
+    /**
+     * Returns the slot of the header cache that contains the header of the block, loading the header if necessary.
+     */
+    private int headerSlot(long offset) throws IOException {
+        var slot = headerCacheIndex(offset);
+        if (headerOffsets[slot] == offset) {
+            headerHits++;
+            return slot;
+        }
+
+        headerMisses++;
+        var header = device.readLong(offset);
+        var type = BlockType.byMagic((int) (header >>> 32));
+        headerOffsets[slot] = offset;
+        headerTypes[slot] = type;
+        headerSizes[slot] = (int) header;
+        return slot;
+    }
+
+    private static int headerCacheIndex(long offset) {
+        return (int) (offset / 16 * 0x9E37_79B9_7F4A_7C15L >>> -HEADER_CACHE_BITS);
+    }
+
+    private void writeHeader(long offset, BlockType type, int size) throws IOException {
+        device.writeLong(offset, (long) type.getMagic() << 32 | size);
+        var slot = headerCacheIndex(offset);
+        headerOffsets[slot] = offset;
+        headerTypes[slot] = type;
+        headerSizes[slot] = size;
+    }
+
+    private void forgetHeader(long offset) {
+        var slot = headerCacheIndex(offset);
+        if (headerOffsets[slot] == offset)
+            headerOffsets[slot] = -1;
     }
 
     void write(long offset, byte[] buf, int off, int len) throws IOException {
-        file.seek(offset);
-        file.write(buf, off, len);
+        device.write(offset, buf, off, len);
     }
 
     void writeInt(long offset, int v) throws IOException {
-        file.seek(offset);
-        file.writeInt(v);
+        device.writeInt(offset, v);
     }
 
     void writeLong(long offset, long v) throws IOException {
-        file.seek(offset);
-        file.writeLong(v);
+        device.writeLong(offset, v);
     }
 
     void writeRef(long offset, long ref) throws IOException {
-        file.seek(offset);
-        file.writeLong(ref);
+        device.writeLong(offset, ref);
+    }
+
+    /**
+     * Writes all modifications to the underlying file. The chain of free blocks is only written on close, since
+     * rewriting it takes time proportional to the number of free blocks. Until then, the free blocks are taken from
+     * the bitmap when the storage is opened again. Without a bitmap, they would have to be found by scanning all
+     * blocks, so the chain is written here as well.
+     */
+    void flush() throws IOException {
+        if (bitmapOffset == 0) writeFreeChain();
+        device.flush();
+    }
+
+    void statistics(Map<String, Long> stats) {
+        device.statistics(stats);
+        stats.put("headerCache.hits", headerHits);
+        stats.put("headerCache.misses", headerMisses);
+        stats.put("dentryCache.hits", dentries.hits());
+        stats.put("dentryCache.misses", dentries.misses());
+    }
+
+    void snapshot(File file) throws IOException {
+        writeFreeChain();
+        compact();
+        device.snapshot(file);
+    }
+
+    /**
+     * Releases the space that has been preallocated beyond the end of the used space.
+     */
+    void compact() throws IOException {
+        if (device.size() != end) {
+            device.setSize(end);
+            dirtyEnd = end;
+        }
     }
 
     @Override
     public void close() throws IOException {
-        file.close();
+        writeFreeChain();
+        if (changed) compact();
+        device.close();
     }
 
     void init() throws IOException {
         var wr = new StorageWriter(this, 0);
-        var rootDir = 2L;
+        var rootDir = 3L;
+        var rootTable = 6L;
+        var bitmap = 15L;
+        var used = bitmap + SffsUtil.blockEnd(0, INITIAL_BITMAP_SIZE) / 16;
 
         wr.writeInt(BlockType.SUPER.getMagic());
-        wr.writeInt(16);
+        wr.writeInt(32);
         wr.writeRef(rootDir);
         wr.writeRef(0); // first free
+        wr.writeRef(bitmap);
+        wr.writeRef(16 * used); // end of the used space
         wr.writePadding();
 
-        var entries = 4;
-        wr.writeInt(BlockType.DIRECTORY.getMagic());
-        wr.writeInt(8 + 16 * entries);
+        wr.writeInt(BlockType.HASHED_DIRECTORY.getMagic());
+        wr.writeInt(Directory.HEADER_SIZE);
         wr.writeRef(rootDir); // parent
-        for (var i = 0; i < entries; i++) {
-            wr.writeRef(0); // name
-            wr.writeRef(0); // object
-        }
+        wr.writeRef(rootTable);
+        wr.writeRef(0); // previous table
+        wr.writeInt(0); // entries
+        wr.writeInt(0); // moved entries
+        wr.writePadding();
+
+        wr.writeInt(BlockType.DIRECTORY_TABLE.getMagic());
+        wr.writeInt(DirectoryEntry.SIZE * Directory.INITIAL_SLOTS);
+        for (var i = 0; i < DirectoryEntry.SIZE * Directory.INITIAL_SLOTS; i += 8)
+            wr.writeRef(0); // empty entries
+        wr.writePadding();
+
+        wr.writeInt(BlockType.BITMAP.getMagic());
+        wr.writeInt(INITIAL_BITMAP_SIZE);
+        wr.writeRef(-1L << (64 - used)); // the superblock, the root directory and the bitmap
+        for (var i = 8; i < INITIAL_BITMAP_SIZE; i += 8)
+            wr.writeRef(0);
         wr.writePadding();
     }
 
@@ -101,37 +294,435 @@ final class Storage implements AutoCloseable {
         return block;
     }
 
-    Block allocateDirectory(int entries, long parentRef) throws IOException {
-        var block = allocate(BlockType.DIRECTORY, 8 + entries * 16);
+    Block allocateDirectory(long parentRef) throws IOException {
+        var block = allocate(BlockType.HASHED_DIRECTORY, Directory.HEADER_SIZE);
         block.writeRef(0, parentRef);
+        block.writeRef(8, allocateDirectoryTable(Directory.INITIAL_SLOTS));
         return block;
     }
 
-    Block allocateFile() throws IOException {
-        return allocate(BlockType.REGULAR, 4096);
+    Block allocateDirectoryTable(int slots) throws IOException {
+        return allocate(BlockType.DIRECTORY_TABLE, DirectoryEntry.SIZE * slots);
     }
 
-    Block allocateChunk(int chunkSize) throws IOException {
-        return allocate(BlockType.CHUNK, 8 + chunkSize);
+    Block allocateDirectoryNode(int height) throws IOException {
+        var block = allocate(BlockType.DIRECTORY_NODE, DirectoryTree.NODE_SIZE);
+        block.writeInt(4, height);
+        return block;
+    }
+
+    Block allocateExtentNode(int height) throws IOException {
+        var block = allocate(BlockType.EXTENT_NODE, RegularFile.NODE_SIZE);
+        block.writeInt(4, height);
+        return block;
+    }
+
+    Block allocateFile(int size) throws IOException {
+        return allocate(BlockType.REGULAR, size);
+    }
+
+    /**
+     * Allocates a block for the data of one or more adjacent chunks of a file.
+     */
+    Block allocateChunk(int dataSize) throws IOException {
+        return allocate(BlockType.CHUNK, 8 + dataSize);
     }
 
     private Block allocate(BlockType type, int size) throws IOException {
-        var offset = file.length();
-        file.seek(offset);
-        file.writeInt(type.getMagic());
-        file.writeInt(size);
-        file.setLength(SffsUtil.blockEnd(offset, size));
+        var offset = allocateSpace(SffsUtil.blockEnd(0, size));
+        writeHeader(offset, type, size);
         return new Block(this, offset);
     }
 
+    /**
+     * Allocates zeroed space for one or more blocks, without writing their headers.
+     */
+    private long allocateSpace(long blockSize) throws IOException {
+        markModified();
+        var offset = takeFree(blockSize);
+        if (offset == -1) {
+            offset = append(blockSize);
+        } else {
+            // Freed blocks may contain arbitrary data, but new blocks must be zero.
+            for (var pos = 8L; pos < blockSize; pos += ZERO.length)
+                device.write(offset + pos, ZERO, 0, (int) Math.min(ZERO.length, blockSize - pos));
+        }
+        markUsed(offset, blockSize, true);
+        return offset;
+    }
+
+    private long append(long blockSize) throws IOException {
+        var offset = extend(blockSize);
+        if (bitmapOffset != 0 && end / 16 > 8L * readInt(bitmapOffset + 4))
+            growBitmap();
+        return offset;
+    }
+
+    /**
+     * Extends the used space by the given size, growing the device geometrically if necessary and possible.
+     *
+     * @return the offset of the new space, which is zero
+     */
+    private long extend(long blockSize) throws IOException {
+        var offset = end;
+        setEnd(offset + blockSize);
+        if (end > device.size()) {
+            var growth = storesEnd ? Math.min(Math.max(device.size(), MIN_GROWTH), MAX_GROWTH) : 0;
+            device.setSize(Math.max(end, device.size() + growth));
+        }
+        for (var pos = offset; pos < Math.min(end, dirtyEnd); pos += ZERO.length)
+            device.write(pos, ZERO, 0, (int) Math.min(ZERO.length, Math.min(end, dirtyEnd) - pos));
+        return offset;
+    }
+
+    private void setEnd(long end) throws IOException {
+        if (storesEnd) writeLong(END, end);
+        this.end = end;
+    }
+
+    /**
+     * Moves the bitmap to a larger block at the end of the storage, leaving room for the storage to grow.
+     */
+    private void growBitmap() throws IOException {
+        var oldOffset = bitmapOffset;
+        var oldSize = readInt(oldOffset + 4);
+        var newSize = 2 * oldSize;
+        while (8L * newSize < (end + SffsUtil.blockEnd(0, newSize)) / 16)
+            newSize *= 2;
+
+        var offset = extend(SffsUtil.blockEnd(0, newSize));
+        writeHeader(offset, BlockType.BITMAP, newSize);
+        var buf = new byte[Math.min(oldSize, 64 * 1024)];
+        for (var pos = 0; pos < oldSize; pos += buf.length) {
+            var n = Math.min(buf.length, oldSize - pos);
+            device.readFully(oldOffset + 8 + pos, buf, 0, n);
+            device.write(offset + 8 + pos, buf, 0, n);
+        }
+
+        bitmapOffset = offset;
+        writeRef(BITMAP, offset / 16);
+        markUsed(offset, SffsUtil.blockEnd(0, newSize), true);
+        free(oldOffset);
+    }
+
+    /**
+     * Sets or clears the bits of the 16-byte units in the given range.
+     * The bits are stored in big-endian order, the most significant bit of each 64-bit word first.
+     */
+    private void markUsed(long offset, long len, boolean used) throws IOException {
+        if (bitmapOffset == 0) return;
+        var start = offset / 16;
+        var end = (offset + len) / 16;
+        for (var word = start >>> 6; word << 6 < end; word++) {
+            var from = Math.max(start - (word << 6), 0);
+            var to = Math.min(end - (word << 6), 64);
+            var mask = -1L >>> from & ~(to == 64 ? 0 : -1L >>> to);
+            var pos = bitmapOffset + 8 + 8 * word;
+            var bits = device.readLong(pos);
+            device.writeLong(pos, used ? bits | mask : bits & ~mask);
+        }
+    }
+
+    /**
+     * Removes a free block that is large enough from the index, splitting off the remaining space into a new free
+     * block.
+     *
+     * @return the offset of the removed block, or -1 if there is none
+     */
+    private long takeFree(long blockSize) throws IOException {
+        var slot = freeSpace.find(blockSize / 16);
+        return slot != -1 ? take(slot, blockSize) : -1;
+    }
+
+    private long take(int slot, long blockSize) throws IOException {
+        var units = blockSize / 16;
+        var ref = freeSpace.start(slot);
+        var freeUnits = freeSpace.size(slot);
+        freeSpace.remove(slot);
+        if (freeUnits > units)
+            addFree(ref + units, freeUnits - units);
+        return 16 * ref;
+    }
+
+    /**
+     * Moves the blocks into adjacent space before the given limit, choosing the free block that is nearest to the
+     * beginning of the storage. If the limit is {@link Long#MAX_VALUE}, the blocks may also be appended.
+     *
+     * @return the new offsets of the blocks, or null if there is no suitable space
+     */
+    long[] moveDown(long[] offsets, long limit) throws IOException {
+        return moveDown(offsets, limit, 0);
+    }
+
+    /**
+     * Moves the blocks like {@link #moveDown(long[], long)}, but only to a free block that has room for at least the
+     * given number of bytes, so that the blocks that belong after them can be moved after them later.
+     */
+    long[] moveDown(long[] offsets, long limit, long space) throws IOException {
+        var sizes = blockSizes(offsets);
+        var total = Arrays.stream(sizes).sum();
+
+        var slot = freeSpace.findLowest((Math.max(total, space) + 15) / 16, limit / 16);
+        if (slot == -1 && limit != Long.MAX_VALUE)
+            return null;
+        markModified();
+        var target = slot != -1 ? take(slot, total) : append(total);
+        markUsed(target, total, true);
+        return move(offsets, sizes, target);
+    }
+
+    /**
+     * Moves the blocks into adjacent space that starts at the given offset, if that space is free or at the end of
+     * the storage.
+     *
+     * @return the new offsets of the blocks, or null if the space is not free
+     */
+    long[] moveTo(long[] offsets, long target) throws IOException {
+        var sizes = blockSizes(offsets);
+        var total = Arrays.stream(sizes).sum();
+
+        var slot = freeSpace.startingAt(target / 16);
+        if (target != end && (slot == -1 || 16 * freeSpace.size(slot) < total))
+            return null;
+        markModified();
+        if (target == end)
+            append(total);
+        else
+            take(slot, total);
+        markUsed(target, total, true);
+        return move(offsets, sizes, target);
+    }
+
+    private long[] blockSizes(long[] offsets) throws IOException {
+        var sizes = new long[offsets.length];
+        for (var i = 0; i < offsets.length; i++)
+            sizes[i] = SffsUtil.blockEnd(offsets[i], readInt(offsets[i] + 4)) - offsets[i];
+        return sizes;
+    }
+
+    /**
+     * Copies the blocks to the allocated space and frees them.
+     */
+    private long[] move(long[] offsets, long[] sizes, long target) throws IOException {
+        var moved = new long[offsets.length];
+        var buf = new byte[(int) Math.min(Arrays.stream(sizes).sum(), 64 * 1024)];
+        for (int i = 0; i < offsets.length; target += sizes[i], i++) {
+            for (var pos = 0L; pos < sizes[i]; pos += buf.length) {
+                var n = (int) Math.min(buf.length, sizes[i] - pos);
+                device.readFully(offsets[i] + pos, buf, 0, n);
+                device.write(target + pos, buf, 0, n);
+            }
+            if (offsets[i] == bitmapOffset) {
+                bitmapOffset = target;
+                writeRef(BITMAP, target / 16);
+            }
+            moved[i] = target;
+        }
+        for (var offset : offsets)
+            free(offset);
+        return moved;
+    }
+
+    /**
+     * Moves the block to the free block that is nearest to the beginning of the storage, if that is before the
+     * block.
+     *
+     * @return the moved block, or null if there is no suitable space
+     */
+    Block moveDown(Block block) throws IOException {
+        var offset = 16 * block.getRef();
+        var moved = moveDown(new long[]{offset}, offset);
+        return moved != null ? new Block(this, moved[0]) : null;
+    }
+
+    /**
+     * Moves the bitmap toward the beginning of the storage, if there is free space.
+     */
+    void moveBitmapDown() throws IOException {
+        if (bitmapOffset != 0)
+            moveDown(new long[]{bitmapOffset}, bitmapOffset);
+    }
+
+    /**
+     * Marks the block as free, merging it with adjacent free blocks.
+     * If the merged block is at the end of the storage, the storage is shrunk instead.
+     */
     void free(long offset) throws IOException {
         assert readInt(offset) != BlockType.FREE.getMagic();
-        if (SffsUtil.blockEnd(offset, readInt(offset + 4)) == file.length()) {
-            file.setLength(offset);
+        markModified();
+        forgetHeader(offset);
+        release(offset / 16, SffsUtil.blockEnd(offset, readInt(offset + 4)) / 16);
+    }
+
+    /**
+     * Changes the type of the block and shrinks it to the given size, releasing the space at its end.
+     */
+    Block shrink(Block block, BlockType type, int size) throws IOException {
+        var offset = 16 * block.getRef();
+        var oldEnd = SffsUtil.blockEnd(offset, block.getSize());
+        var newEnd = SffsUtil.blockEnd(offset, size);
+        assert newEnd <= oldEnd;
+
+        markModified();
+        writeHeader(offset, type, size);
+        device.write(offset + 8 + size, ZERO, 0, (int) (newEnd - offset - 8 - size)); // the padding
+        if (newEnd < oldEnd)
+            release(newEnd / 16, oldEnd / 16);
+        return new Block(this, offset);
+    }
+
+    /**
+     * Grows the block in place to the given size, taking the space from the free block that follows it or from the
+     * end of the storage.
+     *
+     * @return the grown block, or null if the space after the block is in use
+     */
+    Block grow(Block block, int size) throws IOException {
+        var offset = 16 * block.getRef();
+        var oldEnd = SffsUtil.blockEnd(offset, block.getSize());
+        var newEnd = SffsUtil.blockEnd(offset, size);
+        assert newEnd >= oldEnd;
+
+        if (newEnd > oldEnd) {
+            if (oldEnd == end) {
+                markModified();
+                append(newEnd - oldEnd);
+            } else {
+                var slot = freeSpace.startingAt(oldEnd / 16);
+                if (slot == -1 || 16 * freeSpace.size(slot) < newEnd - oldEnd)
+                    return null;
+                markModified();
+                take(slot, newEnd - oldEnd);
+                for (var pos = oldEnd; pos < newEnd; pos += ZERO.length)
+                    device.write(pos, ZERO, 0, (int) Math.min(ZERO.length, newEnd - pos));
+            }
+            markUsed(oldEnd, newEnd - oldEnd, true);
+        }
+        writeHeader(offset, block.getType(), size);
+        return new Block(this, offset);
+    }
+
+    /**
+     * Marks the space as free, merging it with adjacent free blocks.
+     */
+    private void release(long start, long end) throws IOException {
+        markUsed(16 * start, 16 * (end - start), false);
+
+        var before = freeSpace.endingAt(start);
+        if (before != -1) {
+            start = freeSpace.start(before);
+            freeSpace.remove(before);
+        }
+        var after = freeSpace.startingAt(end);
+        if (after != -1) {
+            end += freeSpace.size(after);
+            freeSpace.remove(after);
+        }
+
+        if (16 * end == this.end) {
+            dirtyEnd = Math.max(dirtyEnd, this.end);
+            setEnd(16 * start);
+            return;
+        }
+        addFree(start, end - start);
+    }
+
+    private void addFree(long ref, long units) throws IOException {
+        writeFreeHeader(16 * ref, 16 * units);
+        freeSpace.add(ref, units);
+    }
+
+    private void writeFreeHeader(long offset, long blockSize) throws IOException {
+        forgetHeader(offset);
+        device.writeLong(offset, (long) BlockType.FREE.getMagic() << 32 | Math.toIntExact(blockSize - 8));
+    }
+
+    /**
+     * Before the first modification, marks the chain of free blocks as outdated, so that it is not trusted after a
+     * crash. The mark is written through any cache, since the cache may write back the other modifications in any
+     * order.
+     */
+    private void markModified() throws IOException {
+        if (modified) return;
+        device.writeLongThrough(FIRST_FREE, -1);
+        modified = true;
+        changed = true;
+    }
+
+    /**
+     * Builds the index of free blocks, either from the chain of free blocks or, if the chain is outdated, from the
+     * bitmap or by scanning all blocks.
+     */
+    private void loadFreeSpace() throws IOException {
+        var first = readRef(FIRST_FREE);
+        if (first != -1) {
+            for (var ref = first; ref != 0; ref = readRef(16 * ref + 8)) {
+                var offset = 16 * ref;
+                if (offset < 0 || offset + 16 > device.size() || readInt(offset) != BlockType.FREE.getMagic())
+                    throw new IOException("Invalid free block " + ref);
+                freeSpace.add(ref, (SffsUtil.blockEnd(offset, readInt(offset + 4)) - offset) / 16);
+            }
+            return;
+        }
+
+        if (bitmapOffset != 0) {
+            loadBitmap();
             return;
         }
-        writeInt(offset, BlockType.FREE.getMagic());
-        writeRef(offset + 8, readRef(16)); // block.nextFree = super.firstFree
-        writeRef(16, offset / 16); // super.firstFree = block
+
+        for (var offset = 0L; offset < end; ) {
+            var blockEnd = SffsUtil.blockEnd(offset, readInt(offset + 4));
+            if (readInt(offset) == BlockType.FREE.getMagic()) {
+                var start = offset / 16;
+                var before = freeSpace.endingAt(start);
+                if (before != -1) {
+                    start = freeSpace.start(before);
+                    freeSpace.remove(before);
+                }
+                freeSpace.add(start, blockEnd / 16 - start);
+            }
+            offset = blockEnd;
+        }
+    }
+
+    /**
+     * Adds each run of unused 16-byte units to the index of free blocks.
+     */
+    private void loadBitmap() throws IOException {
+        var units = end / 16;
+        var runStart = -1L;
+        for (var word = 0L; word << 6 < units; word++) {
+            var bits = device.readLong(bitmapOffset + 8 + 8 * word);
+            if (bits == -1L && runStart == -1) continue;
+            if (bits == 0 && runStart != -1) continue;
+            for (var unit = word << 6; unit < Math.min(units, (word + 1) << 6); unit++) {
+                var used = (bits << (unit & 63)) < 0;
+                if (used && runStart != -1) {
+                    freeSpace.add(runStart, unit - runStart);
+                    runStart = -1;
+                } else if (!used && runStart == -1) {
+                    runStart = unit;
+                }
+            }
+        }
+        if (runStart != -1)
+            freeSpace.add(runStart, units - runStart);
+    }
+
+    /**
+     * Writes the chain of free blocks in ascending order, so that the index can be rebuilt without scanning all
+     * blocks. The reference to the chain is only written after the chain has reached the underlying file.
+     */
+    private void writeFreeChain() throws IOException {
+        if (!modified) return;
+        var refs = freeSpace.sortedStarts();
+        for (var i = 0; i < refs.length; i++) {
+            var slot = freeSpace.startingAt(refs[i]);
+            writeFreeHeader(16 * refs[i], 16 * freeSpace.size(slot));
+            writeRef(16 * refs[i] + 8, i + 1 < refs.length ? refs[i + 1] : 0);
+        }
+        device.writeBarrier();
+        writeRef(FIRST_FREE, refs.length > 0 ? refs[0] : 0);
+        modified = false;
     }
 }
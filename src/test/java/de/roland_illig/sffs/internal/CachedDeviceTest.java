@@ -0,0 +1,113 @@
+package de.roland_illig.sffs.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CachedDeviceTest {
+
+    @Test
+    void same_content_as_uncached(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+        var rnd = new Random(0);
+
+        try (var expected = new MemoryDevice(null, 20);
+             var actual = new CachedDevice(new ChannelDevice(new RandomAccessFile(f, "rw")), 3)) {
+            for (var i = 0; i < 5000; i++) {
+                var offset = (long) rnd.nextInt(64 * 1024);
+                switch (rnd.nextInt(6)) {
+                    case 0 -> {
+                        var v = rnd.nextInt();
+                        expected.writeInt(offset, v);
+                        actual.writeInt(offset, v);
+                    }
+                    case 1 -> {
+                        var v = rnd.nextLong();
+                        expected.writeLong(offset, v);
+                        actual.writeLong(offset, v);
+                    }
+                    case 2 -> {
+                        var buf = new byte[rnd.nextInt(3) == 0 ? rnd.nextInt(10000) : rnd.nextInt(100)];
+                        rnd.nextBytes(buf);
+                        expected.write(offset, buf, 0, buf.length);
+                        actual.write(offset, buf, 0, buf.length);
+                    }
+                    case 3 -> {
+                        var size = offset + rnd.nextInt(1000);
+                        expected.setSize(size);
+                        actual.setSize(size);
+                    }
+                    case 4 -> actual.flush();
+                    default -> {
+                        var len = rnd.nextInt(3) == 0 ? rnd.nextInt(10000) : rnd.nextInt(100);
+                        var expectedBuf = new byte[len];
+                        var actualBuf = new byte[len];
+                        assertThat(actual.read(offset, actualBuf, 0, len))
+                                .isEqualTo(expected.read(offset, expectedBuf, 0, len));
+                        assertThat(actualBuf).isEqualTo(expectedBuf);
+                    }
+                }
+                assertThat(actual.size()).isEqualTo(expected.size());
+            }
+
+            actual.flush();
+            var expectedBuf = new byte[(int) expected.size()];
+            var actualBuf = new byte[(int) expected.size()];
+            expected.readFully(0, expectedBuf, 0, expectedBuf.length);
+            try (var raf = new RandomAccessFile(f, "r")) {
+                assertThat(raf.length()).isEqualTo(expected.size());
+                raf.readFully(actualBuf);
+            }
+            assertThat(actualBuf).isEqualTo(expectedBuf);
+        }
+    }
+
+    @Test
+    void statistics(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var fs = new Filesystem(f, "rw,cache=16")) {
+            fs.mkdir(Path.of("dir"));
+            fs.readdir(Path.of("dir"));
+            fs.readdir(Path.of("dir"));
+
+            var stats = fs.getStatistics();
+            assertThat(stats.get("pageCache.misses")).isEqualTo(1L);
+            assertThat(stats.get("pageCache.hits")).isGreaterThan(10);
+        }
+    }
+
+    /**
+     * Without a cache option, the modifications are written immediately, so that they survive a crash.
+     */
+    @Test
+    void cache_is_opt_in(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        var fs = new Filesystem(f, "rw");
+        fs.mkdir(Path.of("dir"));
+        assertThat(fs.getStatistics()).doesNotContainKey("pageCache.hits");
+        // No close, as in a crash.
+
+        try (var reopened = new Filesystem(f, "r")) {
+            assertThat(reopened.readdir(Path.of("."))).containsExactly("dir");
+        }
+    }
+
+    @Test
+    void illegal_cache_size(@TempDir File tmpdir) {
+        var f = new File(tmpdir, "storage");
+
+        assertThatThrownBy(() -> new Filesystem(f, "rw,cache=600000"))
+                .isExactlyInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Illegal mode \"rw,cache=600000\"");
+        assertThat(f).doesNotExist();
+    }
+}
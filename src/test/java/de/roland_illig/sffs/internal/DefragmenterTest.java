@@ -0,0 +1,324 @@
+package de.roland_illig.sffs.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DefragmenterTest {
+
+    @Test
+    void defragment(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var fs = new Filesystem(f, "rw")) {
+            fs.mkdir(Path.of("dir"));
+            for (var i = 0; i < 6; i++) {
+                write(fs, Path.of("dir", "file" + i), 5000 * i, (byte) i);
+                write(fs, Path.of("file" + i), 3000 * i, (byte) (i + 10));
+            }
+            for (var i = 0; i < 6; i += 2) {
+                fs.delete(Path.of("dir", "file" + i));
+                fs.delete(Path.of("file" + (i + 1)));
+            }
+            fs.mkdir(Path.of("dir", "sub"));
+        }
+        var fragmentedSize = f.length();
+
+        try (var fs = new Filesystem(f, "rw")) {
+            var steps = 0;
+            while (!fs.defragment(1))
+                steps++;
+            assertThat(steps).isGreaterThan(10);
+        }
+
+        assertThat(f.length()).isLessThan(fragmentedSize);
+        assertLayoutEquals(f,
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 27 bitmap 433 end 84464",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 358 entries 4",
+                "block 6 type REGULAR size 88",
+                "    size 6000",
+                "    chunkSize 4096",
+                "    extent chunk 0 count 2 block 580",
+                "block 12 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 391 entries 4",
+                "block 15 type REGULAR size 88",
+                "    size 15000",
+                "    chunkSize 4096",
+                "    extent chunk 0 count 4 block 1610",
+                "block 21 type REGULAR size 88",
+                "    size 25000",
+                "    chunkSize 4096",
+                "    extent chunk 0 count 7 block 2558",
+                "block 27 type FREE size 24",
+                "    nextFree 498",
+                "block 29 type REGULAR size 40",
+                "    size 12000",
+                "    chunkSize 4096",
+                "    extent chunk 0 count 3 block 4528",
+                "block 32 type HASHED_DIRECTORY size 32",
+                "    parent 12 table 424 entries 0",
+                "block 35 type REGULAR size 40",
+                "    size 0",
+                "block 38 type REGULAR size 88",
+                "    size 5000",
+                "    chunkSize 4096",
+                "    extent chunk 0 count 2 block 44",
+                "block 44 type CHUNK size 5016",
+                "block 358 type DIRECTORY_TABLE size 512",
+                "    entry 3 name \"file2\" object 6",
+                "    entry 4 name \"dir\" object 12",
+                "    entry 5 name \"file4\" object 29",
+                "    entry 9 name \"file0\" object 35",
+                "block 391 type DIRECTORY_TABLE size 512",
+                "    entry 0 name \"file3\" object 15",
+                "    entry 2 name \"file5\" object 21",
+                "    entry 5 name \"sub\" object 32",
+                "    entry 6 name \"file1\" object 38",
+                "block 424 type DIRECTORY_TABLE size 128",
+                "block 433 type BITMAP size 1024",
+                "    used 4126",
+                "block 498 type FREE size 1304",
+                "    nextFree 956",
+                "block 580 type CHUNK size 6008",
+                "block 956 type FREE size 10456",
+                "    nextFree 2549",
+                "block 1610 type CHUNK size 15016",
+                "block 2549 type FREE size 136",
+                "    nextFree 4122",
+                "block 2558 type CHUNK size 25016",
+                "block 4122 type FREE size 6488",
+                "    nextFree 0",
+                "block 4528 type CHUNK size 12008"
+        );
+
+        try (var fs = new Filesystem(f, "rw")) {
+            assertThat(fs.readdir(Path.of("dir"))).containsExactlyInAnyOrder("sub", "file1", "file3", "file5");
+            for (var i = 1; i < 6; i += 2)
+                check(fs, Path.of("dir", "file" + i), 5000 * i, (byte) i);
+            for (var i = 0; i < 6; i += 2)
+                check(fs, Path.of("file" + i), 3000 * i, (byte) (i + 10));
+        }
+    }
+
+    @Test
+    void open_file_stays_in_place(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var fs = new Filesystem(f, "rw")) {
+            write(fs, Path.of("gap"), 100, (byte) 1);
+            write(fs, Path.of("file"), 10_000, (byte) 2);
+            fs.delete(Path.of("gap"));
+
+            try (var file = fs.open(Path.of("file"), "r")) {
+                while (!fs.defragment(1)) {
+                    // continue
+                }
+                var buf = new byte[10_000];
+                assertThat(file.read(buf, 0, buf.length)).isEqualTo(10_000);
+                assertThat(buf[9_999]).isEqualTo((byte) 2);
+            }
+        }
+
+        assertLayoutEquals(f,
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 24 bitmap 15 end 10576",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 6 entries 1",
+                "block 6 type DIRECTORY_TABLE size 128",
+                "    entry 3 name \"file\" object 29",
+                "block 15 type BITMAP size 128",
+                "    used 656",
+                "block 24 type FREE size 72",
+                "    nextFree 0",
+                "block 29 type REGULAR size 88",
+                "    size 10000",
+                "    chunkSize 4096",
+                "    extent chunk 0 count 3 block 35",
+                "block 35 type CHUNK size 10008"
+        );
+    }
+
+    @Test
+    void continue_after_modification(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var fs = new Filesystem(f, "rw")) {
+            for (var i = 0; i < 10; i++)
+                fs.mkdir(Path.of("dir" + i));
+            for (var i = 0; i < 10; i += 2)
+                fs.rmdir(Path.of("dir" + i));
+
+            assertThat(fs.defragment(3)).isFalse();
+            fs.move(Path.of("dir1"), Path.of("dir3", "moved"));
+            while (!fs.defragment(3)) {
+                // continue
+            }
+
+            assertThat(fs.readdir(Path.of("."))).containsExactlyInAnyOrder("dir3", "dir5", "dir7", "dir9");
+            assertThat(fs.readdir(Path.of("dir3"))).containsExactly("moved");
+        }
+
+        assertLayoutEquals(f,
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 71 bitmap 15 end 3504",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 154 entries 4",
+                "block 6 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 20 entries 1",
+                "block 9 type HASHED_DIRECTORY size 32",
+                "    parent 6 table 35 entries 0",
+                "block 12 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 44 entries 0",
+                "block 15 type BITMAP size 64",
+                "    used 136",
+                "block 20 type DIRECTORY_TABLE size 128",
+                "    entry 0 name \"moved\" object 9",
+                "block 29 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 53 entries 0",
+                "block 32 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 62 entries 0",
+                "block 35 type DIRECTORY_TABLE size 128",
+                "block 44 type DIRECTORY_TABLE size 128",
+                "block 53 type DIRECTORY_TABLE size 128",
+                "block 62 type DIRECTORY_TABLE size 128",
+                "block 71 type FREE size 1320",
+                "    nextFree 0",
+                "block 154 type DIRECTORY_TABLE size 1024",
+                "    entry 5 name \"dir3\" object 6",
+                "    entry 19 name \"dir5\" object 12",
+                "    entry 23 name \"dir9\" object 29",
+                "    entry 25 name \"dir7\" object 32"
+        );
+    }
+
+    @Test
+    void pass_finishes_although_modified_between_steps(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var fs = new Filesystem(f, "rw")) {
+            for (var i = 0; i < 20; i++) {
+                fs.mkdir(Path.of("dir" + i));
+                for (var j = 0; j < 5; j++)
+                    write(fs, Path.of("dir" + i, "file" + j), 100 * j, (byte) j);
+            }
+            for (var i = 0; i < 20; i += 2)
+                fs.delete(Path.of("dir" + i, "file1"));
+
+            var steps = 0;
+            while (!fs.defragment(1)) {
+                fs.mkdir(Path.of("tmp"));
+                fs.rmdir(Path.of("tmp"));
+                steps++;
+                assertThat(steps).isLessThan(10_000);
+            }
+
+            for (var i = 0; i < 20; i++)
+                for (var j = 0; j < 5; j++)
+                    if (i % 2 != 0 || j != 1)
+                        check(fs, Path.of("dir" + i, "file" + j), 100 * j, (byte) j);
+        }
+    }
+
+    @Test
+    void remove_visited_directory(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var fs = new Filesystem(f, "rw")) {
+            fs.mkdir(Path.of("dir"));
+            fs.mkdir(Path.of("dir", "sub"));
+            for (var i = 0; i < 5; i++)
+                write(fs, Path.of("dir", "sub", "file" + i), 100, (byte) i);
+            write(fs, Path.of("file"), 100, (byte) 10);
+
+            var steps = 0;
+            while (!fs.defragment(1)) {
+                if (++steps == 4) {
+                    for (var i = 0; i < 5; i++)
+                        fs.delete(Path.of("dir", "sub", "file" + i));
+                    fs.rmdir(Path.of("dir", "sub"));
+                    fs.rmdir(Path.of("dir"));
+                }
+            }
+
+            assertThat(steps).isGreaterThan(4);
+            assertThat(fs.readdir(Path.of("."))).containsExactly("file");
+            check(fs, Path.of("file"), 100, (byte) 10);
+        }
+    }
+
+    @Test
+    void large_file_is_moved_in_steps(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var fs = new Filesystem(f, "rw")) {
+            fs.mkdir(Path.of("dir"));
+            try (var a = fs.open(Path.of("a"), "w"); var b = fs.open(Path.of("b"), "w")) {
+                var bufA = new byte[4096];
+                var bufB = new byte[4096];
+                Arrays.fill(bufA, (byte) 'a');
+                Arrays.fill(bufB, (byte) 'b');
+                for (var i = 0; i < 100; i++) {
+                    a.write(bufA, 0, bufA.length);
+                    a.flush();
+                    b.write(bufB, 0, bufB.length);
+                    b.flush();
+                }
+            }
+            fs.delete(Path.of("b"));
+        }
+        var fragmentedSize = f.length();
+
+        try (var fs = new Filesystem(f, "rw")) {
+            var steps = 0;
+            while (!fs.defragment(1)) {
+                if (steps++ % 10 == 0)
+                    fs.mkdir(Path.of("dir", "sub" + steps));
+            }
+
+            assertThat(steps).isGreaterThan(100);
+            check(fs, Path.of("a"), 100 * 4096, (byte) 'a');
+        }
+
+        var blocks = Dumper.dump(f).stream()
+                .filter(line -> line.startsWith("    extent "))
+                .map(line -> Long.parseLong(line.substring(line.lastIndexOf(' ') + 1)))
+                .toList();
+        assertThat(blocks).hasSize(100);
+        assertThat(blocks).isEqualTo(blocks.stream().sorted().toList());
+        assertThat(16 * blocks.get(99)).isLessThan(fragmentedSize / 2);
+    }
+
+    /**
+     * Compares the dump of the storage, without the contents of the blocks.
+     */
+    private static void assertLayoutEquals(File f, String... expectedTextRows) throws IOException {
+        var layout = Dumper.dump(f).stream()
+                .filter(line -> !line.matches(" {4}\\p{XDigit}{8}  .*"))
+                .toList();
+        assertThat(layout).containsExactly(expectedTextRows);
+    }
+
+    private static void write(Filesystem fs, Path path, int size, byte b) throws IOException {
+        try (var file = fs.open(path, "w")) {
+            var buf = new byte[size];
+            Arrays.fill(buf, b);
+            file.write(buf, 0, size);
+        }
+    }
+
+    private static void check(Filesystem fs, Path path, int size, byte b) throws IOException {
+        try (var file = fs.open(path, "r")) {
+            var buf = new byte[size + 1];
+            assertThat(file.read(buf, 0, buf.length)).isEqualTo(size == 0 ? -1 : size);
+            for (var i = 0; i < size; i++)
+                assertThat(buf[i]).isEqualTo(b);
+        }
+    }
+}
@@ -1,11 +1,15 @@
 package de.roland_illig.sffs.internal;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.TreeSet;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
@@ -34,30 +38,31 @@ class DirectoryTest {
         }
 
         SffsTestUtil.assertTextDumpEquals(f,
-                "block 0 type SUPER size 16",
-                "    root 2 firstFree 0",
-                "block 2 type DIRECTORY size 72",
-                "    parent 2",
-                "    entry 0 name 7 object 8",
-                "    entry 1 name 13 object 14",
-                "    entry 2 name 19 object 20",
-                "    entry 3 name 25 object 26",
-                "block 7 type NAME size 1",
-                "    1",
-                "block 8 type DIRECTORY size 72",
-                "    parent 2",
-                "block 13 type NAME size 1",
-                "    2",
-                "block 14 type DIRECTORY size 72",
-                "    parent 2",
-                "block 19 type NAME size 1",
-                "    3",
-                "block 20 type DIRECTORY size 72",
-                "    parent 2",
-                "block 25 type NAME size 1",
-                "    4",
-                "block 26 type DIRECTORY size 72",
-                "    parent 2"
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 9 bitmap 15 end 1312",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 56 entries 4",
+                "block 6 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 73 entries 0",
+                "block 9 type FREE size 88",
+                "    nextFree 0",
+                "block 15 type BITMAP size 64",
+                "    used 76",
+                "block 20 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 23 entries 0",
+                "block 23 type DIRECTORY_TABLE size 128",
+                "block 32 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 35 entries 0",
+                "block 35 type DIRECTORY_TABLE size 128",
+                "block 44 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 47 entries 0",
+                "block 47 type DIRECTORY_TABLE size 128",
+                "block 56 type DIRECTORY_TABLE size 256",
+                "    entry 2 name \"3\" object 44",
+                "    entry 3 name \"4\" object 6",
+                "    entry 4 name \"1\" object 20",
+                "    entry 5 name \"2\" object 32",
+                "block 73 type DIRECTORY_TABLE size 128"
         );
 
         try (var fs = new Filesystem(f, "rw")) {
@@ -65,34 +70,291 @@ class DirectoryTest {
         }
 
         SffsTestUtil.assertTextDumpEquals(f,
-                "block 0 type SUPER size 16",
-                "    root 31 firstFree 13",
-                "block 2 type FREE size 72",
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 9 bitmap 15 end 1840",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 82 entries 4",
+                "block 6 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 73 entries 0",
+                "block 9 type FREE size 88",
+                "    nextFree 56",
+                "block 15 type BITMAP size 64",
+                "    used 92",
+                "block 20 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 23 entries 0",
+                "block 23 type DIRECTORY_TABLE size 128",
+                "block 32 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 35 entries 0",
+                "block 35 type DIRECTORY_TABLE size 128",
+                "block 44 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 47 entries 0",
+                "block 47 type DIRECTORY_TABLE size 128",
+                "block 56 type FREE size 264",
                 "    nextFree 0",
-                "block 7 type NAME size 1",
-                "    1",
-                "block 8 type DIRECTORY size 72",
-                "    parent 31",
-                "block 13 type FREE size 1",
-                "    nextFree 2",
-                "block 14 type DIRECTORY size 72",
-                "    parent 31",
-                "block 19 type NAME size 1",
-                "    3",
-                "block 20 type DIRECTORY size 72",
-                "    parent 31",
-                "block 25 type NAME size 1",
-                "    4",
-                "block 26 type DIRECTORY size 72",
-                "    parent 31",
-                "block 31 type DIRECTORY size 136",
-                "    parent 31",
-                "    entry 0 name 7 object 8",
-                "    entry 2 name 19 object 20",
-                "    entry 3 name 25 object 26",
-                "    entry 4 name 40 object 14",
-                "block 40 type NAME size 1",
-                "    5"
+                "block 73 type DIRECTORY_TABLE size 128",
+                "block 82 type DIRECTORY_TABLE size 512",
+                "    entry 0 name \"5\" object 32",
+                "    entry 2 name \"3\" object 44",
+                "    entry 3 name \"4\" object 6",
+                "    entry 12 name \"1\" object 20"
+        );
+    }
+
+    @Test
+    void linear_directory_is_converted(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+        SffsTestUtil.writeHex(f,
+                // superblock, without a bitmap
+                "53 46 30 31 00 00 00 20  00 00 00 00 00 00 00 03",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
+                "00 00 00 00 00 00 00 80  00 00 00 00 00 00 00 00",
+                // root directory, in the linear format
+                "53 46 64 69 00 00 00 28  00 00 00 00 00 00 00 03",
+                "00 00 00 00 00 00 00 06  00 00 00 00 00 00 00 07",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
+                // name "a"
+                "53 46 6E 6D 00 00 00 01  61 00 00 00 00 00 00 00",
+                // directory "a", in the linear format
+                "53 46 64 69 00 00 00 08  00 00 00 00 00 00 00 03"
         );
+
+        try (var fs = new Filesystem(f, "rw")) {
+            assertThat(fs.readdir(Path.of("."))).containsExactly("a");
+            fs.mkdir(Path.of("b"));
+            fs.mkdir(Path.of("a", "c"));
+            assertThat(fs.readdir(Path.of("."))).containsExactlyInAnyOrder("a", "b");
+            assertThat(fs.readdir(Path.of("a"))).containsExactly("c");
+        }
+
+        SffsTestUtil.assertTextDumpEquals(f,
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 6 bitmap 0 end 848",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 8 entries 2",
+                "block 6 type FREE size 24",
+                "    nextFree 0",
+                "block 8 type DIRECTORY_TABLE size 128",
+                "    entry 0 name \"a\" object 38",
+                "    entry 1 name \"b\" object 17",
+                "block 17 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 20 entries 0",
+                "block 20 type DIRECTORY_TABLE size 128",
+                "block 29 type DIRECTORY_TABLE size 128",
+                "    entry 2 name \"c\" object 41",
+                "block 38 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 29 entries 1",
+                "block 41 type HASHED_DIRECTORY size 32",
+                "    parent 38 table 44 entries 0",
+                "block 44 type DIRECTORY_TABLE size 128"
+        );
+    }
+
+    @Test
+    void long_names(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var fs = new Filesystem(f, "rw")) {
+            fs.mkdir(Path.of("abcdefghijklmnopqrstuvw"));
+            fs.mkdir(Path.of("abcdefghijklmnopqrstuvwx"));
+            fs.mkdir(Path.of("abcdefghijklmnopqrstuvwxyz"));
+            fs.rmdir(Path.of("abcdefghijklmnopqrstuvwxyz"));
+        }
+
+        SffsTestUtil.assertTextDumpEquals(f,
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 6 bitmap 15 end 1248",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 61 entries 2",
+                "block 6 type FREE size 136",
+                "    nextFree 46",
+                "block 15 type BITMAP size 64",
+                "    used 54",
+                "block 20 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 23 entries 0",
+                "block 23 type DIRECTORY_TABLE size 128",
+                "block 32 type NAME size 24",
+                "    abcdefghijklmnopqrstuvwx",
+                "block 34 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 37 entries 0",
+                "block 37 type DIRECTORY_TABLE size 128",
+                "block 46 type FREE size 232",
+                "    nextFree 0",
+                "block 61 type DIRECTORY_TABLE size 256",
+                "    entry 5 name 32 object 34",
+                "    entry 7 name \"abcdefghijklmnopqrstuvw\" object 20"
+        );
+    }
+
+    @Test
+    void repeated_names(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var fs = new Filesystem(f, "rw")) {
+            for (var i = 0; i < 100; i++) {
+                var dir = Path.of("dir" + i);
+                fs.mkdir(dir);
+                for (var name : new String[]{"index.html", "README", "part-00000"})
+                    fs.open(dir.resolve(name), "w").close();
+            }
+            fs.mkdir(Path.of("dir0", "a name that is too long to be inlined"));
+        }
+
+        // Only the long name needs a block of its own.
+        assertThat(Dumper.dump(f).stream().filter(line -> line.contains(" type NAME ")).count()).isEqualTo(1);
+    }
+
+    @Test
+    void lookup_does_not_allocate() throws IOException {
+        try (var storage = new Storage(new MemoryDevice(null, MappedDevice.SEGMENT_BITS))) {
+            var table = new DirectoryTable(storage.allocateDirectoryTable(64));
+            for (var i = 0; i < 20; i++) {
+                table.insert("short" + i, DirectoryEntry.create(storage, "short" + i, 100 + i));
+                var name = "a rather long name number " + i;
+                table.insert(name, DirectoryEntry.create(storage, name, 200 + i));
+            }
+            var present = "a rather long name number 7".getBytes(StandardCharsets.UTF_8);
+            var inline = "short7".getBytes(StandardCharsets.UTF_8);
+            var missing = "a rather long name number 77".getBytes(StandardCharsets.UTF_8);
+            var sameLength = "a rather long name number X".getBytes(StandardCharsets.UTF_8);
+
+            var names = new byte[][]{present, inline, missing, sameLength};
+            var bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+            // The warm-up lets the JIT compiler and the class loading finish their allocations.
+            var sum = lookup(table, names, 50_000);
+            var minAllocated = Long.MAX_VALUE;
+            for (var round = 0; round < 10; round++) {
+                var before = bean.getCurrentThreadAllocatedBytes();
+                sum += lookup(table, names, 1000);
+                minAllocated = Math.min(minAllocated, bean.getCurrentThreadAllocatedBytes() - before);
+            }
+
+            // Less than a byte per lookup in the best round, so that a stray allocation of the JVM doesn't matter.
+            assertThat(minAllocated).isLessThan(4000);
+            assertThat(sum).isEqualTo(60_000 * (207 + 107));
+        }
+    }
+
+    private static long lookup(DirectoryTable table, byte[][] names, int times) throws IOException {
+        var sum = 0L;
+        for (var i = 0; i < times; i++)
+            for (var name : names)
+                sum += table.lookup(name);
+        return sum;
+    }
+
+    @Test
+    void lookup_cache(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var fs = new Filesystem(f, "rw")) {
+            assertThatThrownBy(() -> fs.readdir(Path.of("dir", "sub")))
+                    .isInstanceOf(FileNotFoundException.class);
+            fs.mkdir(Path.of("dir"));
+            fs.mkdir(Path.of("dir", "sub"));
+            assertThat(fs.readdir(Path.of("dir", "sub"))).isEmpty();
+
+            var misses = fs.getStatistics().get("dentryCache.misses");
+            assertThat(fs.readdir(Path.of("dir", "sub"))).isEmpty();
+            assertThat(fs.getStatistics().get("dentryCache.misses")).isEqualTo(misses);
+
+            // Growing the directory replaces its table, and the old table is reused by "other".
+            for (var i = 0; i < 4; i++)
+                fs.mkdir(Path.of("dir", "sub", "" + i));
+            fs.mkdir(Path.of("other"));
+            assertThat(fs.readdir(Path.of("dir", "sub"))).containsExactlyInAnyOrder("0", "1", "2", "3");
+            assertThat(fs.readdir(Path.of("other"))).isEmpty();
+        }
+    }
+
+    @Test
+    void growing_keeps_references() throws IOException {
+        try (var storage = new Storage(new MemoryDevice(null, MappedDevice.SEGMENT_BITS))) {
+            var root = new Superblock(storage).getRootDirectory();
+            root.mkdir(Path.of("dir"));
+            var dir = root.lookupDir("dir");
+            var ref = dir.block.getRef();
+            dir.mkdir(Path.of("first"));
+            var first = dir.lookupDir("first");
+            var firstHeader = new byte[Directory.HEADER_SIZE];
+            first.block.readFully(0, firstHeader, 0, firstHeader.length);
+
+            // Enough entries to grow the table several times and then switch to a tree.
+            for (var i = 0; i < 2000; i++)
+                dir.mkdir(Path.of("" + i));
+
+            assertThat(dir.block.getRef()).isEqualTo(ref);
+            assertThat(new Superblock(storage).getRootDirectory().lookup("dir").getRef()).isEqualTo(ref);
+            var header = new byte[Directory.HEADER_SIZE];
+            dir.lookupDir("first").block.readFully(0, header, 0, header.length);
+            assertThat(header).isEqualTo(firstHeader);
+            assertThat(dir.lookupDir("first").getParent().block.getRef()).isEqualTo(ref);
+        }
+    }
+
+    @Test
+    void shrinking() throws IOException {
+        try (var storage = new Storage(new MemoryDevice(null, MappedDevice.SEGMENT_BITS))) {
+            var dir = new Superblock(storage).getRootDirectory();
+            for (var i = 0; i < 3000; i++)
+                dir.mkdir(Path.of("" + i));
+            for (var i = 10; i < 3000; i++)
+                dir.lookupDir("" + i).removeMe(Path.of("" + i));
+
+            // The tree has been replaced with a table, which is being moved to a smaller table.
+            assertThat(dir.getEntriesCount()).isEqualTo(512 + 256);
+            assertThat(dir.readdir()).containsExactlyInAnyOrder("0", "1", "2", "3", "4", "5", "6", "7", "8", "9");
+
+            // Each modification moves a few slots, until the table is at most 1/4 full.
+            for (var i = 0; i < 100; i++) {
+                dir.mkdir(Path.of("x"));
+                dir.lookupDir("x").removeMe(Path.of("x"));
+            }
+            assertThat(dir.getEntriesCount()).isEqualTo(64);
+
+            // Near the threshold, the table neither grows nor shrinks.
+            for (var i = 0; i < 100; i++) {
+                dir.mkdir(Path.of("x"));
+                assertThat(dir.getEntriesCount()).isEqualTo(64);
+                dir.lookupDir("x").removeMe(Path.of("x"));
+                assertThat(dir.getEntriesCount()).isEqualTo(64);
+            }
+            assertThat(dir.readdir()).containsExactlyInAnyOrder("0", "1", "2", "3", "4", "5", "6", "7", "8", "9");
+        }
+    }
+
+    @Test
+    void large_directory(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var fs = new Filesystem(f, "rw")) {
+            var names = new TreeSet<String>();
+            for (var i = 0; i < 3000; i++) {
+                var name = String.format("%04d", i * 7 % 3000);
+                fs.mkdir(Path.of(name));
+                names.add(name);
+            }
+            // Once the directory has switched to a tree, its entries are sorted.
+            assertThat(fs.readdir(Path.of("."))).containsExactlyElementsOf(names);
+
+            for (var i = 0; i < 3000; i += 3) {
+                var name = String.format("%04d", i * 11 % 3000);
+                fs.rmdir(Path.of(name));
+                names.remove(name);
+            }
+            assertThat(fs.readdir(Path.of("."))).containsExactlyElementsOf(names);
+            assertThat(fs.readdir(Path.of("0001"))).isEmpty();
+            assertThatThrownBy(() -> fs.readdir(Path.of("0000")))
+                    .isInstanceOf(FileNotFoundException.class);
+
+            while (!fs.defragment(1000)) {
+                // Continue until a full pass is done.
+            }
+            assertThat(fs.readdir(Path.of("."))).containsExactlyElementsOf(names);
+
+            for (var name : names)
+                fs.rmdir(Path.of(name));
+            assertThat(fs.readdir(Path.of("."))).isEmpty();
+        }
     }
 }
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -20,6 +21,8 @@ final class Dumper {
     private final StringWriter lineText = new StringWriter();
     private final PrintWriter line = new PrintWriter(lineText, true);
     private final List<String> lines = new ArrayList<>();
+    private final List<long[]> usedRanges = new ArrayList<>();
+    private long bitmapOffset = -1;
 
     public Dumper(RandomAccessFile raf) {
         this.raf = raf;
@@ -30,6 +33,7 @@ final class Dumper {
             var dumper = new Dumper(raf);
             while (dumper.raf.getFilePointer() < dumper.raf.length())
                 dumper.dumpBlock();
+            dumper.checkBitmap();
             return dumper.lines;
         }
     }
@@ -41,22 +45,41 @@ final class Dumper {
         var blockSize = raf.readInt();
 
         println("block %d type %s size %d", blockOffset / 16, type.name(), blockSize);
+        if (type != BlockType.FREE)
+            usedRanges.add(new long[]{blockOffset / 16, SffsUtil.blockEnd(blockOffset, blockSize) / 16});
         switch (type) {
-            case SUPER -> dumpSuper();
+            case SUPER -> dumpSuper(blockSize);
             case DIRECTORY -> dumpDirectory(blockSize);
             case REGULAR -> dumpRegular(blockSize);
             case CHUNK -> dumpChunk(blockSize);
             case FREE -> dumpFree(blockSize);
             case NAME -> dumpName(blockSize);
+            case BITMAP -> dumpBitmap(blockOffset, blockSize);
+            case HASHED_DIRECTORY -> dumpHashedDirectory();
+            case DIRECTORY_TABLE -> dumpDirectoryTable(blockSize);
+            case DIRECTORY_NODE -> dumpDirectoryNode();
+            case EXTENT_NODE -> dumpExtentNode();
         }
 
         dumpPadding(SffsUtil.blockEnd(blockOffset, blockSize));
     }
 
-    private void dumpSuper() throws IOException {
+    private void dumpSuper(int blockSize) throws IOException {
         var rootDirRef = raf.readLong();
         var firstFreeRef = raf.readLong();
-        println("    root %d firstFree %d", rootDirRef, firstFreeRef);
+        if (blockSize < 24) {
+            println("    root %d firstFree %d", rootDirRef, firstFreeRef);
+            return;
+        }
+        var bitmapRef = raf.readLong();
+        if (blockSize < 32) {
+            println("    root %d firstFree %d bitmap %d", rootDirRef, firstFreeRef, bitmapRef);
+            return;
+        }
+        var end = raf.readLong();
+        println("    root %d firstFree %d bitmap %d end %d", rootDirRef, firstFreeRef, bitmapRef, end);
+        if (end != raf.length())
+            println("%08x: error: end of used space %d differs from file size %d", 32, end, raf.length());
     }
 
     private void dumpDirectory(int blockSize) throws IOException {
@@ -75,12 +98,76 @@ final class Dumper {
         }
     }
 
+    private void dumpHashedDirectory() throws IOException {
+        var parentRef = raf.readLong();
+        var tableRef = raf.readLong();
+        var previousRef = raf.readLong();
+        var count = raf.readInt();
+        var moved = raf.readInt();
+        println("    parent %d table %d entries %d", parentRef, tableRef, count);
+        if (previousRef != 0)
+            println("    previous %d moved %d", previousRef, moved);
+    }
+
+    private void dumpDirectoryTable(int blockSize) throws IOException {
+        for (var pos = 0; pos < blockSize; pos += DirectoryEntry.SIZE) {
+            var entry = readDirectoryEntry();
+            var objRef = raf.readLong();
+            if (entry != null)
+                println("    entry %d %s object %d", pos / DirectoryEntry.SIZE, entry, objRef);
+            else if (objRef != 0)
+                println("    entry %d removed", pos / DirectoryEntry.SIZE);
+        }
+    }
+
+    private void dumpDirectoryNode() throws IOException {
+        var count = raf.readInt();
+        var height = raf.readInt();
+        println("    height %d entries %d", height, count);
+        if (height == 0) {
+            for (var i = 0; i < count; i++)
+                println("    entry %d %s object %d", i, readDirectoryEntry(), raf.readLong());
+            return;
+        }
+        for (var i = 0; i <= count; i++) {
+            println("    child %d node %d entries %d", i, raf.readLong(), raf.readLong());
+            if (i < count)
+                println("    entry %d %s object %d", i, readDirectoryEntry(), raf.readLong());
+        }
+    }
+
+    /**
+     * Reads the name of a directory entry, without the object.
+     *
+     * @return the description of the name, or null if the name is empty
+     */
+    private String readDirectoryEntry() throws IOException {
+        var buf = new byte[DirectoryEntry.SIZE - 8];
+        raf.readFully(buf);
+        var length = buf[0] & 0xFF;
+        if (length == 0)
+            return null;
+        if (length == 0xFF)
+            return "name " + ByteBuffer.wrap(buf).getLong(8);
+        return "name \"" + new String(buf, 1, length, StandardCharsets.UTF_8) + "\"";
+    }
+
     private void dumpRegular(int blockSize) throws IOException {
         var fileSize = raf.readLong();
         var chunkSize = raf.readInt();
-        dumpPadding(raf.getFilePointer() + 12);
+        var entries = raf.readInt();
+        var depth = raf.readInt();
+        dumpPadding(raf.getFilePointer() + 4);
 
         println("    size %d", fileSize);
+        if (chunkSize != 0 && (entries != 0 || depth != 0)) {
+            println("    chunkSize %d", chunkSize);
+            if (depth != 0)
+                println("    depth %d", depth);
+            dumpExtents(depth, entries);
+            dumpPadding(raf.getFilePointer() + blockSize - 24 - 16L * entries);
+            return;
+        }
         if (chunkSize != 0) {
             println("    chunkSize %d", chunkSize);
             for (var pos = 24; pos < blockSize; pos += 8) {
@@ -94,6 +181,25 @@ final class Dumper {
         dumpHex(fileSize);
     }
 
+    private void dumpExtentNode() throws IOException {
+        var count = raf.readInt();
+        var height = raf.readInt();
+        println("    height %d entries %d", height, count);
+        dumpExtents(height, count);
+    }
+
+    private void dumpExtents(int height, int count) throws IOException {
+        for (var i = 0; i < count; i++) {
+            var first = raf.readInt();
+            var chunks = raf.readInt();
+            var ref = raf.readLong();
+            if (height == 0)
+                println("    extent chunk %d count %d block %d", first, chunks, ref);
+            else
+                println("    node chunk %d block %d", first, ref);
+        }
+    }
+
     private void dumpChunk(int blockSize) throws IOException {
         dumpPadding(raf.getFilePointer() + 8);
         dumpHex(blockSize - 8);
@@ -113,6 +219,35 @@ final class Dumper {
         println("    %s", new String(bytes, StandardCharsets.UTF_8));
     }
 
+    private void dumpBitmap(long blockOffset, int blockSize) throws IOException {
+        bitmapOffset = blockOffset;
+        var used = 0;
+        for (var pos = 0; pos < blockSize; pos += 8)
+            used += Long.bitCount(raf.readLong());
+        println("    used %d", used);
+    }
+
+    /**
+     * Checks that the bitmap marks exactly the units of the blocks that are not free.
+     */
+    private void checkBitmap() throws IOException {
+        if (bitmapOffset == -1) return;
+
+        var units = raf.length() / 16;
+        var expected = new boolean[(int) units];
+        for (var range : usedRanges)
+            Arrays.fill(expected, (int) range[0], (int) Math.min(range[1], units), true);
+
+        for (var unit = 0; unit < units; unit++) {
+            raf.seek(bitmapOffset + 8 + 8 * (unit / 64));
+            var used = (raf.readLong() << (unit & 63)) < 0;
+            if (used != expected[unit]) {
+                println("%08x: error: bitmap marks unit %d as %s", bitmapOffset, unit, used ? "used" : "free");
+                return;
+            }
+        }
+    }
+
     private void dumpHex(long size) throws IOException {
         var zero = new byte[16];
         var row = new byte[16];
@@ -35,10 +35,25 @@ class FilesystemTest {
 
         SffsTestUtil.assertDumpEquals(f,
                 // superblock
-                "53 46 30 31 00 00 00 10  00 00 00 00 00 00 00 02",
-                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
+                "53 46 30 31 00 00 00 20  00 00 00 00 00 00 00 03",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 0F",
+                "00 00 00 00 00 00 01 40  00 00 00 00 00 00 00 00",
                 // root directory
-                "53 46 64 69 00 00 00 48  00 00 00 00 00 00 00 02",
+                "53 46 64 68 00 00 00 20  00 00 00 00 00 00 00 03",
+                "00 00 00 00 00 00 00 06  00 00 00 00 00 00 00 00",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
+                // table of the root directory
+                "53 46 64 74 00 00 00 80  00 00 00 00 00 00 00 00",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
+                // bitmap of used space
+                "53 46 62 6D 00 00 00 40  FF FF F0 00 00 00 00 00",
                 "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
                 "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
                 "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
@@ -46,10 +61,13 @@ class FilesystemTest {
         );
 
         SffsTestUtil.assertTextDumpEquals(f,
-                "block 0 type SUPER size 16",
-                "    root 2 firstFree 0",
-                "block 2 type DIRECTORY size 72",
-                "    parent 2"
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 0 bitmap 15 end 320",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 6 entries 0",
+                "block 6 type DIRECTORY_TABLE size 128",
+                "block 15 type BITMAP size 64",
+                "    used 20"
         );
     }
 
@@ -62,15 +80,17 @@ class FilesystemTest {
         }
 
         SffsTestUtil.assertTextDumpEquals(f,
-                "block 0 type SUPER size 16",
-                "    root 2 firstFree 0",
-                "block 2 type DIRECTORY size 72",
-                "    parent 2",
-                "    entry 0 name 7 object 9",
-                "block 7 type NAME size 9",
-                "    Downloads",
-                "block 9 type DIRECTORY size 72",
-                "    parent 2"
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 0 bitmap 15 end 512",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 6 entries 1",
+                "block 6 type DIRECTORY_TABLE size 128",
+                "    entry 2 name \"Downloads\" object 20",
+                "block 15 type BITMAP size 64",
+                "    used 32",
+                "block 20 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 23 entries 0",
+                "block 23 type DIRECTORY_TABLE size 128"
         );
     }
 
@@ -87,15 +107,17 @@ class FilesystemTest {
 
         // No traces of trying to create the directory.
         SffsTestUtil.assertTextDumpEquals(f,
-                "block 0 type SUPER size 16",
-                "    root 2 firstFree 0",
-                "block 2 type DIRECTORY size 72",
-                "    parent 2",
-                "    entry 0 name 7 object 9",
-                "block 7 type NAME size 9",
-                "    Downloads",
-                "block 9 type DIRECTORY size 72",
-                "    parent 2"
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 0 bitmap 15 end 512",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 6 entries 1",
+                "block 6 type DIRECTORY_TABLE size 128",
+                "    entry 2 name \"Downloads\" object 20",
+                "block 15 type BITMAP size 64",
+                "    used 32",
+                "block 20 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 23 entries 0",
+                "block 23 type DIRECTORY_TABLE size 128"
         );
     }
 
@@ -109,20 +131,21 @@ class FilesystemTest {
         }
 
         SffsTestUtil.assertTextDumpEquals(f,
-                "block 0 type SUPER size 16",
-                "    root 2 firstFree 0",
-                "block 2 type DIRECTORY size 72",
-                "    parent 2",
-                "    entry 0 name 7 object 9",
-                "block 7 type NAME size 9",
-                "    Downloads",
-                "block 9 type DIRECTORY size 72",
-                "    parent 2",
-                "    entry 0 name 14 object 15",
-                "block 14 type NAME size 4",
-                "    2021",
-                "block 15 type DIRECTORY size 72",
-                "    parent 9"
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 0 bitmap 15 end 704",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 6 entries 1",
+                "block 6 type DIRECTORY_TABLE size 128",
+                "    entry 2 name \"Downloads\" object 20",
+                "block 15 type BITMAP size 64",
+                "    used 44",
+                "block 20 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 23 entries 1",
+                "block 23 type DIRECTORY_TABLE size 128",
+                "    entry 2 name \"2021\" object 32",
+                "block 32 type HASHED_DIRECTORY size 32",
+                "    parent 20 table 35 entries 0",
+                "block 35 type DIRECTORY_TABLE size 128"
         );
     }
 
@@ -143,37 +166,37 @@ class FilesystemTest {
         }
 
         SffsTestUtil.assertTextDumpEquals(f,
-                "block 0 type SUPER size 16",
-                "    root 31 firstFree 2",
-                "block 2 type FREE size 72",
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 12 bitmap 15 end 1984",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 91 entries 5",
+                "block 6 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 73 entries 0",
+                "block 9 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 82 entries 0",
+                "block 12 type FREE size 40",
+                "    nextFree 56",
+                "block 15 type BITMAP size 64",
+                "    used 104",
+                "block 20 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 23 entries 0",
+                "block 23 type DIRECTORY_TABLE size 128",
+                "block 32 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 35 entries 0",
+                "block 35 type DIRECTORY_TABLE size 128",
+                "block 44 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 47 entries 0",
+                "block 47 type DIRECTORY_TABLE size 128",
+                "block 56 type FREE size 264",
                 "    nextFree 0",
-                "block 7 type NAME size 4",
-                "    dir1",
-                "block 8 type DIRECTORY size 72",
-                "    parent 31",
-                "block 13 type NAME size 4",
-                "    dir2",
-                "block 14 type DIRECTORY size 72",
-                "    parent 31",
-                "block 19 type NAME size 4",
-                "    dir3",
-                "block 20 type DIRECTORY size 72",
-                "    parent 31",
-                "block 25 type NAME size 4",
-                "    dir4",
-                "block 26 type DIRECTORY size 72",
-                "    parent 31",
-                "block 31 type DIRECTORY size 136",
-                "    parent 31",
-                "    entry 0 name 7 object 8",
-                "    entry 1 name 13 object 14",
-                "    entry 2 name 19 object 20",
-                "    entry 3 name 25 object 26",
-                "    entry 4 name 40 object 41",
-                "block 40 type NAME size 4",
-                "    dir5",
-                "block 41 type DIRECTORY size 72",
-                "    parent 31"
+                "block 73 type DIRECTORY_TABLE size 128",
+                "block 82 type DIRECTORY_TABLE size 128",
+                "block 91 type DIRECTORY_TABLE size 512",
+                "    entry 0 name \"dir4\" object 6",
+                "    entry 2 name \"dir2\" object 32",
+                "    entry 3 name \"dir5\" object 9",
+                "    entry 5 name \"dir3\" object 44",
+                "    entry 15 name \"dir1\" object 20"
         );
     }
 
@@ -199,17 +222,13 @@ class FilesystemTest {
         }
 
         SffsTestUtil.assertTextDumpEquals(f,
-                "block 0 type SUPER size 16",
-                "    root 2 firstFree 9",
-                "block 2 type DIRECTORY size 72",
-                "    parent 2",
-                "block 7 type FREE size 9",
-                "    nextFree 14",
-                "block 9 type FREE size 72",
-                "    nextFree 7",
-                // TODO: truncate the container file
-                "block 14 type FREE size 4",
-                "    nextFree 0"
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 0 bitmap 15 end 320",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 6 entries 0",
+                "block 6 type DIRECTORY_TABLE size 128",
+                "block 15 type BITMAP size 64",
+                "    used 20"
         );
     }
 
@@ -235,23 +254,22 @@ class FilesystemTest {
         }
 
         SffsTestUtil.assertTextDumpEquals(f,
-                "block 0 type SUPER size 16",
-                "    root 2 firstFree 7",
-                "block 2 type DIRECTORY size 72",
-                "    parent 2",
-                "    entry 0 name 21 object 9",
-                "block 7 type FREE size 9",
-                "    nextFree 14",
-                "block 9 type DIRECTORY size 72",
-                "    parent 2",
-                "    entry 0 name 20 object 15",
-                "block 14 type FREE size 4",
-                "    nextFree 0",
-                "block 15 type DIRECTORY size 72",
-                "    parent 9",
-                "block 20 type NAME size 8",
-                "    new name",
-                "block 21 type NAME size 25",
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 0 bitmap 15 end 752",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 6 entries 1",
+                "block 6 type DIRECTORY_TABLE size 128",
+                "    entry 2 name 44 object 20",
+                "block 15 type BITMAP size 64",
+                "    used 47",
+                "block 20 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 23 entries 1",
+                "block 23 type DIRECTORY_TABLE size 128",
+                "    entry 0 name \"new name\" object 32",
+                "block 32 type HASHED_DIRECTORY size 32",
+                "    parent 20 table 35 entries 0",
+                "block 35 type DIRECTORY_TABLE size 128",
+                "block 44 type NAME size 25",
                 "    Downloads (archived 2021)"
         );
     }
@@ -276,26 +294,27 @@ class FilesystemTest {
         }
 
         SffsTestUtil.assertTextDumpEquals(f,
-                "block 0 type SUPER size 16",
-                "    root 2 firstFree 0",
-                "block 2 type DIRECTORY size 72",
-                "    parent 2",
-                "    entry 0 name 7 object 8",
-                "block 7 type NAME size 4",
-                "    file",
-                "block 8 type REGULAR size 4096",
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 26 bitmap 15 end 7936",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 6 entries 1",
+                "block 6 type DIRECTORY_TABLE size 128",
+                "    entry 3 name \"file\" object 20",
+                "block 15 type BITMAP size 64",
+                "    used 494",
+                "block 20 type REGULAR size 88",
                 "    size 32004",
                 "    chunkSize 4096",
-                "    chunk 0 265",
-                "    chunk 1 779",
-                "    chunk 7 522",
-                "block 265 type CHUNK size 4104",
+                "    extent chunk 0 count 2 block 238",
+                "    extent chunk 7 count 1 block 28",
+                "block 26 type FREE size 24",
+                "    nextFree 0",
+                "block 28 type CHUNK size 3352",
+                "    00000d00  33 34 35 36 00 00 00 00  00 00 00 00 00 00 00 00",
+                "block 238 type CHUNK size 4120",
                 "    00000000  31 32 33 34 35 36 37 38  00 00 00 00 00 00 00 00",
                 "    00000ff0  00 00 00 00 00 00 00 00  00 00 00 00 00 00 32 33",
-                "block 522 type CHUNK size 4104",
-                "    00000d00  33 34 35 36 00 00 00 00  00 00 00 00 00 00 00 00",
-                "block 779 type CHUNK size 4104",
-                "    00000000  34 35 36 37 00 00 00 00  00 00 00 00 00 00 00 00"
+                "    00001000  34 35 36 37 00 00 00 00  00 00 00 00 00 00 00 00"
         );
     }
 
@@ -358,30 +377,28 @@ class FilesystemTest {
             file.seek(509 * 4096 - 1);
             file.write(buf, 0, 1);
 
-            // TODO: support files larger than just 2 MB
-            assertThatThrownBy(() -> file.write(buf, 0, 1))
-                    .isInstanceOf(IndexOutOfBoundsException.class)
-                    .hasMessageEndingWith(": 4104");
+            // Before extents, the block of the file had room for only 509 chunk references.
+            file.write(buf, 0, 1);
 
             file.close();
         }
 
         SffsTestUtil.assertTextDumpEquals(f,
-                "block 0 type SUPER size 16",
-                "    root 2 firstFree 0",
-                "block 2 type DIRECTORY size 72",
-                "    parent 2",
-                "    entry 0 name 7 object 8",
-                "block 7 type NAME size 4",
-                "    file",
-                "block 8 type REGULAR size 4096",
-                "    size 2084864",
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 0 bitmap 15 end 4544",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 6 entries 1",
+                "block 6 type DIRECTORY_TABLE size 128",
+                "    entry 3 name \"file\" object 20",
+                "block 15 type BITMAP size 64",
+                "    used 284",
+                "block 20 type REGULAR size 88",
+                "    size 2084865",
                 "    chunkSize 4096",
-                "    chunk 0 265",
-                "    chunk 508 522",
-                "block 265 type CHUNK size 4104",
-                "block 522 type CHUNK size 4104",
-                "    00000ff0  00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 55"
+                "    extent chunk 508 count 2 block 26",
+                "block 26 type CHUNK size 4120",
+                "    00000ff0  00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 55",
+                "    00001000  55 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00"
         );
     }
 
@@ -402,27 +419,25 @@ class FilesystemTest {
         // over to the new directory instead of deleting it and creating the
         // new block 25 with the same name.
         SffsTestUtil.assertTextDumpEquals(f,
-                "block 0 type SUPER size 16",
-                "    root 2 firstFree 13",
-                "block 2 type DIRECTORY size 72",
-                "    parent 2",
-                "    entry 0 name 7 object 8",
-                "    entry 1 name 19 object 20",
-                "block 7 type NAME size 4",
-                "    from",
-                "block 8 type DIRECTORY size 72",
-                "    parent 2",
-                "block 13 type FREE size 6",
-                "    nextFree 0",
-                "block 14 type DIRECTORY size 72",
-                "    parent 20",
-                "block 19 type NAME size 2",
-                "    to",
-                "block 20 type DIRECTORY size 72",
-                "    parent 2",
-                "    entry 0 name 25 object 14",
-                "block 25 type NAME size 6",
-                "    source"
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 0 bitmap 15 end 896",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 6 entries 2",
+                "block 6 type DIRECTORY_TABLE size 128",
+                "    entry 0 name \"to\" object 44",
+                "    entry 1 name \"from\" object 20",
+                "block 15 type BITMAP size 64",
+                "    used 56",
+                "block 20 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 23 entries 0",
+                "block 23 type DIRECTORY_TABLE size 128",
+                "block 32 type HASHED_DIRECTORY size 32",
+                "    parent 44 table 35 entries 0",
+                "block 35 type DIRECTORY_TABLE size 128",
+                "block 44 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 47 entries 1",
+                "block 47 type DIRECTORY_TABLE size 128",
+                "    entry 0 name \"source\" object 32"
         );
     }
 
@@ -443,27 +458,25 @@ class FilesystemTest {
         // over to the new directory instead of deleting it and creating the
         // new block 25 with the same name.
         SffsTestUtil.assertTextDumpEquals(f,
-                "block 0 type SUPER size 16",
-                "    root 2 firstFree 13",
-                "block 2 type DIRECTORY size 72",
-                "    parent 2",
-                "    entry 0 name 7 object 8",
-                "    entry 1 name 19 object 20",
-                "block 7 type NAME size 4",
-                "    from",
-                "block 8 type DIRECTORY size 72",
-                "    parent 2",
-                "    entry 1 name 25 object 14",
-                "block 13 type FREE size 6",
-                "    nextFree 0",
-                "block 14 type DIRECTORY size 72",
-                "    parent 8",
-                "block 19 type NAME size 2",
-                "    to",
-                "block 20 type DIRECTORY size 72",
-                "    parent 2",
-                "block 25 type NAME size 7",
-                "    renamed"
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 0 bitmap 15 end 896",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 6 entries 2",
+                "block 6 type DIRECTORY_TABLE size 128",
+                "    entry 0 name \"to\" object 44",
+                "    entry 1 name \"from\" object 20",
+                "block 15 type BITMAP size 64",
+                "    used 56",
+                "block 20 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 23 entries 1",
+                "block 23 type DIRECTORY_TABLE size 128",
+                "    entry 1 name \"renamed\" object 32",
+                "block 32 type HASHED_DIRECTORY size 32",
+                "    parent 20 table 35 entries 0",
+                "block 35 type DIRECTORY_TABLE size 128",
+                "block 44 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 47 entries 0",
+                "block 47 type DIRECTORY_TABLE size 128"
         );
     }
 
@@ -484,27 +497,25 @@ class FilesystemTest {
         // over to the new directory instead of deleting it and creating the
         // new block 25 with the same name.
         SffsTestUtil.assertTextDumpEquals(f,
-                "block 0 type SUPER size 16",
-                "    root 2 firstFree 13",
-                "block 2 type DIRECTORY size 72",
-                "    parent 2",
-                "    entry 0 name 7 object 8",
-                "    entry 1 name 19 object 20",
-                "block 7 type NAME size 4",
-                "    from",
-                "block 8 type DIRECTORY size 72",
-                "    parent 2",
-                "block 13 type FREE size 6",
-                "    nextFree 0",
-                "block 14 type DIRECTORY size 72",
-                "    parent 20",
-                "block 19 type NAME size 2",
-                "    to",
-                "block 20 type DIRECTORY size 72",
-                "    parent 2",
-                "    entry 0 name 25 object 14",
-                "block 25 type NAME size 5",
-                "    final"
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 0 bitmap 15 end 896",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 6 entries 2",
+                "block 6 type DIRECTORY_TABLE size 128",
+                "    entry 0 name \"to\" object 44",
+                "    entry 1 name \"from\" object 20",
+                "block 15 type BITMAP size 64",
+                "    used 56",
+                "block 20 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 23 entries 0",
+                "block 23 type DIRECTORY_TABLE size 128",
+                "block 32 type HASHED_DIRECTORY size 32",
+                "    parent 44 table 35 entries 0",
+                "block 35 type DIRECTORY_TABLE size 128",
+                "block 44 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 47 entries 1",
+                "block 47 type DIRECTORY_TABLE size 128",
+                "    entry 3 name \"final\" object 32"
         );
     }
 
@@ -606,20 +617,21 @@ class FilesystemTest {
 
         // There is no attempt of creating the directory "target".
         SffsTestUtil.assertTextDumpEquals(f,
-                "block 0 type SUPER size 16",
-                "    root 2 firstFree 0",
-                "block 2 type DIRECTORY size 72",
-                "    parent 2",
-                "    entry 0 name 7 object 8",
-                "block 7 type NAME size 6",
-                "    source",
-                "block 8 type DIRECTORY size 72",
-                "    parent 2",
-                "    entry 0 name 13 object 15",
-                "block 13 type NAME size 9",
-                "    directory",
-                "block 15 type DIRECTORY size 72",
-                "    parent 8"
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 0 bitmap 15 end 704",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 6 entries 1",
+                "block 6 type DIRECTORY_TABLE size 128",
+                "    entry 0 name \"source\" object 20",
+                "block 15 type BITMAP size 64",
+                "    used 44",
+                "block 20 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 23 entries 1",
+                "block 23 type DIRECTORY_TABLE size 128",
+                "    entry 0 name \"directory\" object 32",
+                "block 32 type HASHED_DIRECTORY size 32",
+                "    parent 20 table 35 entries 0",
+                "block 35 type DIRECTORY_TABLE size 128"
         );
     }
 
@@ -663,7 +675,7 @@ class FilesystemTest {
         try (var fs = new Filesystem(f, "rw")) {
             assertThatThrownBy(() -> fs.delete(Path.of("dir", "subdir")))
                     .isInstanceOf(FileSystemException.class)
-                    .hasMessage("expected REGULAR, got DIRECTORY");
+                    .hasMessage("expected REGULAR, got HASHED_DIRECTORY");
         }
 
         assertThat(Dumper.dump(f)).isEqualTo(before);
@@ -680,14 +692,15 @@ class FilesystemTest {
         }
 
         SffsTestUtil.assertTextDumpEquals(f,
-                "block 0 type SUPER size 16",
-                "    root 2 firstFree 0",
-                "block 2 type DIRECTORY size 72",
-                "    parent 2",
-                "    entry 0 name 7 object 8",
-                "block 7 type NAME size 5",
-                "    small",
-                "block 8 type REGULAR size 4096",
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 0 bitmap 15 end 368",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 6 entries 1",
+                "block 6 type DIRECTORY_TABLE size 128",
+                "    entry 0 name \"small\" object 20",
+                "block 15 type BITMAP size 64",
+                "    used 23",
+                "block 20 type REGULAR size 40",
                 "    size 1",
                 "    00000000  55"
         );
@@ -697,12 +710,13 @@ class FilesystemTest {
         }
 
         SffsTestUtil.assertTextDumpEquals(f,
-                "block 0 type SUPER size 16",
-                "    root 2 firstFree 7",
-                "block 2 type DIRECTORY size 72",
-                "    parent 2",
-                "block 7 type FREE size 5",
-                "    nextFree 0"
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 0 bitmap 15 end 320",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 6 entries 0",
+                "block 6 type DIRECTORY_TABLE size 128",
+                "block 15 type BITMAP size 64",
+                "    used 20"
         );
     }
 
@@ -719,21 +733,22 @@ class FilesystemTest {
         }
 
         SffsTestUtil.assertTextDumpEquals(f,
-                "block 0 type SUPER size 16",
-                "    root 2 firstFree 0",
-                "block 2 type DIRECTORY size 72",
-                "    parent 2",
-                "    entry 0 name 7 object 8",
-                "block 7 type NAME size 5",
-                "    large",
-                "block 8 type REGULAR size 4096",
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 0 bitmap 15 end 480",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 6 entries 1",
+                "block 6 type DIRECTORY_TABLE size 128",
+                "    entry 0 name \"large\" object 20",
+                "block 15 type BITMAP size 64",
+                "    used 30",
+                "block 20 type REGULAR size 88",
                 "    size 65537",
                 "    chunkSize 4096",
-                "    chunk 0 265",
-                "    chunk 16 522",
-                "block 265 type CHUNK size 4104",
+                "    extent chunk 0 count 1 block 26",
+                "    extent chunk 16 count 1 block 28",
+                "block 26 type CHUNK size 24",
                 "    00000000  55 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
-                "block 522 type CHUNK size 4104",
+                "block 28 type CHUNK size 24",
                 "    00000000  55 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00"
         );
 
@@ -742,16 +757,13 @@ class FilesystemTest {
         }
 
         SffsTestUtil.assertTextDumpEquals(f,
-                "block 0 type SUPER size 16",
-                "    root 2 firstFree 8",
-                "block 2 type DIRECTORY size 72",
-                "    parent 2",
-                "block 7 type FREE size 5",
-                "    nextFree 0",
-                "block 8 type FREE size 4096",
-                "    nextFree 265",
-                "block 265 type FREE size 4104",
-                "    nextFree 7"
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 0 bitmap 15 end 320",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 6 entries 0",
+                "block 6 type DIRECTORY_TABLE size 128",
+                "block 15 type BITMAP size 64",
+                "    used 20"
         );
     }
 
@@ -767,7 +779,7 @@ class FilesystemTest {
             fs.rmdir(Path.of("deleted"));
 
             assertThat(fs.readdir(Path.of(".")))
-                    .containsExactly("first", "second", "file");
+                    .containsExactlyInAnyOrder("first", "second", "file");
         }
     }
 }
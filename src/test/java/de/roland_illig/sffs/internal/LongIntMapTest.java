@@ -0,0 +1,33 @@
+package de.roland_illig.sffs.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.HashMap;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class LongIntMapTest {
+
+    @Test
+    void same_as_hash_map() {
+        var expected = new HashMap<Long, Integer>();
+        var actual = new LongIntMap(4);
+        var rnd = new Random(0);
+
+        for (var i = 0; i < 100_000; i++) {
+            var key = (long) rnd.nextInt(1000);
+            switch (rnd.nextInt(3)) {
+                case 0 -> {
+                    expected.put(key, i);
+                    actual.put(key, i);
+                }
+                case 1 -> {
+                    expected.remove(key);
+                    actual.remove(key);
+                }
+                default -> assertThat(actual.get(key)).isEqualTo(expected.getOrDefault(key, -1));
+            }
+            assertThat(actual.size()).isEqualTo(expected.size());
+        }
+    }
+}
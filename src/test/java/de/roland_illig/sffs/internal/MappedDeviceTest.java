@@ -0,0 +1,118 @@
+package de.roland_illig.sffs.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MappedDeviceTest {
+
+    @Test
+    void segment_boundaries(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var device = new MappedDevice(new RandomAccessFile(f, "rw"), "rw", 4)) {
+            device.writeLong(12, 0x0102_0304_0506_0708L);
+            device.writeInt(30, 0x1122_3344);
+            device.write(40, "segmented".getBytes(StandardCharsets.UTF_8), 0, 9);
+
+            assertThat(device.size()).isEqualTo(49);
+            assertThat(device.readLong(12)).isEqualTo(0x0102_0304_0506_0708L);
+            assertThat(device.readInt(30)).isEqualTo(0x1122_3344);
+            assertThat(device.readInt(14)).isEqualTo(0x0304_0506);
+
+            var buf = new byte[16];
+            assertThat(device.read(40, buf, 0, 16)).isEqualTo(9);
+            assertThat(new String(buf, 0, 9, StandardCharsets.UTF_8)).isEqualTo("segmented");
+            assertThat(device.read(49, buf, 0, 16)).isEqualTo(-1);
+
+            device.setSize(32);
+            assertThat(device.size()).isEqualTo(32);
+            assertThatThrownBy(() -> device.readInt(30))
+                    .isInstanceOf(IOException.class);
+        }
+
+        SffsTestUtil.assertDumpEquals(f,
+                "00 00 00 00 00 00 00 00  00 00 00 00 01 02 03 04",
+                "05 06 07 08 00 00 00 00  00 00 00 00 00 00 11 22"
+        );
+    }
+
+    /**
+     * Shrinking unmaps the segments beyond the new end before truncating the file, and the remaining segments stay
+     * usable.
+     */
+    @Test
+    void shrink_and_grow(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var device = new MappedDevice(new RandomAccessFile(f, "rw"), "rw", 4)) {
+            for (var offset = 0; offset < 64; offset += 8)
+                device.writeLong(offset, offset + 1);
+
+            device.setSize(20);
+            assertThat(f.length()).isEqualTo(20);
+            assertThat(device.readLong(8)).isEqualTo(9);
+
+            device.setSize(48);
+            assertThat(device.readLong(8)).isEqualTo(9);
+            assertThat(device.readInt(16)).isEqualTo(0);
+            assertThat(device.readLong(40)).isEqualTo(0);
+            device.writeLong(40, 41);
+        }
+
+        SffsTestUtil.assertDumpEquals(f,
+                "00 00 00 00 00 00 00 01  00 00 00 00 00 00 00 09",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 29"
+        );
+    }
+
+    @Test
+    void same_layout_as_channel(@TempDir File tmpdir) throws IOException {
+        var channelFile = new File(tmpdir, "channel");
+        var mappedFile = new File(tmpdir, "mapped");
+
+        for (var mode : new String[]{"rw", "rw,mmap"}) {
+            var f = mode.equals("rw") ? channelFile : mappedFile;
+            try (var fs = new Filesystem(f, mode)) {
+                fs.mkdir(Path.of("dir"));
+                try (var file = fs.open(Path.of("dir", "file"), "w")) {
+                    file.seek(5000);
+                    file.write(new byte[]{'x'}, 0, 1);
+                }
+                fs.delete(Path.of("dir", "file"));
+            }
+        }
+
+        assertThat(Dumper.dump(mappedFile)).isEqualTo(Dumper.dump(channelFile));
+    }
+
+    @Test
+    void read_only(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+        new Filesystem(f, "rw").close();
+
+        try (var fs = new Filesystem(f, "r,mmap")) {
+            assertThat(fs.readdir(Path.of("."))).isEqualTo(List.of());
+            assertThatThrownBy(() -> fs.mkdir(Path.of("dir")))
+                    .isInstanceOf(IOException.class);
+        }
+    }
+
+    @Test
+    void illegal_mode(@TempDir File tmpdir) {
+        var f = new File(tmpdir, "storage");
+
+        assertThatThrownBy(() -> new Filesystem(f, "rws,mmap"))
+                .isExactlyInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Illegal mode \"rws,mmap\"");
+    }
+}
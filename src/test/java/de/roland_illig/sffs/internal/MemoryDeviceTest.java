@@ -0,0 +1,108 @@
+package de.roland_illig.sffs.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MemoryDeviceTest {
+
+    @Test
+    void grow_and_shrink() throws IOException {
+        try (var device = new MemoryDevice(null, 5)) {
+            device.writeLong(28, 0x0102_0304_0506_0708L);
+            assertThat(device.size()).isEqualTo(36);
+            assertThat(device.readInt(30)).isEqualTo(0x0304_0506);
+
+            device.setSize(30);
+            device.setSize(100);
+            assertThat(device.readLong(28)).isEqualTo(0x0102_0000_0000_0000L);
+        }
+    }
+
+    @Test
+    void snapshot(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var fs = de.roland_illig.sffs.Filesystem.openInMemory()) {
+            fs.mkdir(Path.of("dir"));
+            try (var file = fs.open(Path.of("dir", "file"), "w")) {
+                file.write(new byte[]{'x'}, 0, 1);
+            }
+            fs.snapshot(f);
+        }
+
+        SffsTestUtil.assertTextDumpEquals(f,
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 0 bitmap 15 end 560",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 6 entries 1",
+                "block 6 type DIRECTORY_TABLE size 128",
+                "    entry 0 name \"dir\" object 20",
+                "block 15 type BITMAP size 64",
+                "    used 35",
+                "block 20 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 23 entries 1",
+                "block 23 type DIRECTORY_TABLE size 128",
+                "    entry 3 name \"file\" object 32",
+                "block 32 type REGULAR size 40",
+                "    size 1",
+                "    00000000  78"
+        );
+    }
+
+    @Test
+    void write_back_on_close(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+        new Filesystem(f, "rw").close();
+        var before = Dumper.dump(f);
+
+        try (var fs = new Filesystem(f, "rw,memory")) {
+            fs.mkdir(Path.of("dir"));
+            assertThat(Dumper.dump(f)).isEqualTo(before);
+        }
+
+        try (var fs = new Filesystem(f, "r,memory")) {
+            assertThat(fs.readdir(Path.of("."))).containsExactly("dir");
+            fs.mkdir(Path.of("discarded"));
+        }
+
+        try (var fs = new Filesystem(f, "r")) {
+            assertThat(fs.readdir(Path.of("."))).containsExactly("dir");
+        }
+    }
+
+    @Test
+    void write_back_only_once(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+        new Filesystem(f, "rw").close();
+
+        try (var fs = new Filesystem(f, "rw,memory")) {
+            fs.mkdir(Path.of("dir"));
+            fs.flush();
+            assertThat(tmpdir.list()).containsExactly("storage");
+
+            // Nothing has changed since the image has been written, so it is not written again.
+            assertThat(f.delete()).isTrue();
+            fs.flush();
+            assertThat(f).doesNotExist();
+        }
+    }
+
+    @Test
+    void write_barrier_keeps_image(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+        new Filesystem(f, "rw").close();
+        var before = Dumper.dump(f);
+
+        try (var device = MemoryDevice.load(f, true)) {
+            device.writeLong(16, -1);
+            device.writeBarrier();
+            assertThat(Dumper.dump(f)).isEqualTo(before);
+        }
+        assertThat(Dumper.dump(f)).isNotEqualTo(before);
+    }
+}
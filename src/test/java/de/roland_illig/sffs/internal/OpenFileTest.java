@@ -41,6 +41,34 @@ class OpenFileTest {
         }
     }
 
+    /**
+     * A file that is opened while another open file still buffers written data sees that data.
+     */
+    @Test
+    void open_flushes_buffered_data(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var fs = new Filesystem(f, "rw")) {
+            try (var writer = fs.open(Path.of("file"), "w")) {
+                writer.write(new byte[]{1, 2}, 0, 2);
+
+                try (var reader = fs.open(Path.of("file"), "r")) {
+                    var buf = new byte[3];
+                    assertThat(reader.read(buf, 0, 3)).isEqualTo(2);
+                    assertThat(buf).isEqualTo(new byte[]{1, 2, 0});
+                }
+
+                writer.write(new byte[]{3}, 0, 1);
+                fs.open(Path.of("file"), "w").close();
+            }
+
+            try (var reader = fs.open(Path.of("file"), "r")) {
+                var buf = new byte[3];
+                assertThat(reader.read(buf, 0, 3)).isEqualTo(-1);
+            }
+        }
+    }
+
     @Test
     void tell(@TempDir File tmpdir) throws IOException {
         var f = new File(tmpdir, "storage");
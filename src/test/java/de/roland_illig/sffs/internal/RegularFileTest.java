@@ -1,6 +1,7 @@
 package de.roland_illig.sffs.internal;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatCode;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 import java.io.File;
@@ -116,12 +117,8 @@ class RegularFileTest {
                 file.seek(Integer.MAX_VALUE - 25);
                 assertThat(file.read(new byte[1], 0, 1)).isEqualTo(-1);
 
-                // XXX: It feels somewhat arbitrary to limit the file offset to 24 below
-                //  Integer.MAX_VALUE. Why exactly 24, from an API point of view?
-                file.seek(Integer.MAX_VALUE - 24);
-                assertThatThrownBy(() -> file.read(new byte[1], 0, 1))
-                        .isInstanceOf(IndexOutOfBoundsException.class)
-                        .hasMessageEndingWith(": 2147483624");
+                file.seek(Long.MAX_VALUE);
+                assertThat(file.read(new byte[1], 0, 1)).isEqualTo(-1);
             }
         }
     }
@@ -214,19 +211,20 @@ class RegularFileTest {
                         .isInstanceOf(IndexOutOfBoundsException.class)
                         .hasMessageEndingWith(": -1");
 
-                // This limit is due to an incomplete implementation of large files,
-                // it is not a conceptual limit.
+                // A large file only needs an extent for the chunks that are actually written.
                 file.seek(Integer.MAX_VALUE - 25);
-                assertThatThrownBy(() -> file.write(new byte[1], 0, 1))
-                        .isInstanceOf(IndexOutOfBoundsException.class)
-                        .hasMessageEndingWith(": 4194328");
+                assertThatCode(() -> file.write(new byte[1], 0, 1))
+                        .doesNotThrowAnyException();
 
-                // XXX: It feels somewhat arbitrary to limit the file offset to 24 below
-                //  Integer.MAX_VALUE. Why exactly 24, from an API point of view?
-                file.seek(Integer.MAX_VALUE - 24);
+                // The index of each chunk must fit into 31 bits.
+                file.seek(RegularFile.MAX_SIZE - 1);
+                assertThatCode(() -> file.write(new byte[1], 0, 1))
+                        .doesNotThrowAnyException();
+
+                file.seek(RegularFile.MAX_SIZE);
                 assertThatThrownBy(() -> file.write(new byte[1], 0, 1))
                         .isInstanceOf(IndexOutOfBoundsException.class)
-                        .hasMessageEndingWith(": 2147483624");
+                        .hasMessageEndingWith(": 8796093018113");
             }
         }
     }
@@ -292,4 +290,339 @@ class RegularFileTest {
             }
         }
     }
+
+    @Test
+    void write_allocates_adjacent_chunks(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var fs = new Filesystem(f, "rw")) {
+            try (var file = fs.open(Path.of("large"), "w")) {
+                file.seek(5_000);
+                file.write(new byte[]{'a'}, 0, 1);
+                file.flush();
+                fs.mkdir(Path.of("dir"));
+                file.seek(4 * 4096 - 1);
+                file.write(new byte[2 * 4096 + 2], 0, 2 * 4096 + 2);
+            }
+        }
+
+        SffsTestUtil.assertTextDumpEquals(f,
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 15 bitmap 866 end 14000",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 6 entries 2",
+                "block 6 type DIRECTORY_TABLE size 128",
+                "    entry 0 name \"large\" object 20",
+                "    entry 1 name \"dir\" object 84",
+                "block 15 type FREE size 72",
+                "    nextFree 0",
+                "block 20 type REGULAR size 88",
+                "    size 24577",
+                "    chunkSize 4096",
+                "    extent chunk 1 count 1 block 26",
+                "    extent chunk 3 count 4 block 96",
+                "block 26 type CHUNK size 920",
+                "    00000380  00 00 00 00 00 00 00 00  61 00 00 00 00 00 00 00",
+                "block 84 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 87 entries 0",
+                "block 87 type DIRECTORY_TABLE size 128",
+                "block 96 type CHUNK size 12312",
+                "block 866 type BITMAP size 128",
+                "    used 870"
+        );
+    }
+
+    @Test
+    void small_writes_are_buffered(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var fs = new Filesystem(f, "rw")) {
+            try (var file = fs.open(Path.of("log"), "w")) {
+                var record = new byte[200];
+                for (var i = 0; i < 100; i++) {
+                    record[0] = (byte) i;
+                    file.write(record, 0, record.length);
+                    if (i % 25 == 0)
+                        fs.mkdir(Path.of("dir" + i));
+                }
+            }
+        }
+
+        assertThat(Dumper.dump(f).stream().filter(line -> line.startsWith("    extent ")).toList())
+                .containsExactly(
+                        "    extent chunk 0 count 5 block 115"
+                );
+    }
+
+    @Test
+    void sequential_writes_grow_a_single_extent(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var fs = new Filesystem(f, "rw")) {
+            try (var file = fs.open(Path.of("large"), "w")) {
+                var buf = new byte[10_000];
+                for (var i = 0; i < 30; i++)
+                    file.write(buf, 0, buf.length);
+            }
+        }
+
+        // Each extent grows in place until the bitmap has to grow and is moved behind it. The open file passes its
+        // buffer in pieces that end at a multiple of its size, so each extent starts at such a multiple.
+        assertThat(Dumper.dump(f).stream().filter(line -> line.startsWith("    extent ")).toList())
+                .containsExactly(
+                        "    extent chunk 0 count 16 block 26",
+                        "    extent chunk 16 count 16 block 4188",
+                        "    extent chunk 32 count 32 block 8414",
+                        "    extent chunk 64 count 10 block 16864"
+                );
+    }
+
+    @Test
+    void chunk_size_depends_on_expected_size(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var fs = new Filesystem(f, "rw")) {
+            try (var file = fs.open(Path.of("hint"), "w", 100_000_000)) {
+                file.write(new byte[]{'h'}, 0, 1);
+            }
+            try (var file = fs.open(Path.of("first-write"), "w")) {
+                file.write(new byte[3_000_000], 0, 3_000_000);
+            }
+            try (var file = fs.open(Path.of("small-writes"), "w")) {
+                for (var i = 0; i < 1000; i++)
+                    file.write(new byte[3_000], 0, 3_000);
+            }
+            try (var file = fs.open(Path.of("huge"), "w", 1L << 40)) {
+                file.write(new byte[]{'h'}, 0, 1);
+            }
+        }
+
+        assertThat(Dumper.dump(f).stream().filter(line -> line.startsWith("    chunkSize ")).toList())
+                .containsExactlyInAnyOrder(
+                        "    chunkSize 262144",
+                        "    chunkSize 8192",
+                        "    chunkSize 8192",
+                        "    chunkSize 1048576"
+                );
+        assertThat(RegularFile.chunkSize(0)).isEqualTo(4096);
+    }
+
+    /**
+     * The chunk size of a file that is written in small pieces is first chosen from the buffered data, and it is
+     * raised as the file grows, without moving data and thereby leaving free space behind.
+     */
+    @Test
+    void chunk_size_grows_with_file(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        var buf = new byte[3_000];
+        try (var fs = new Filesystem(f, "rw")) {
+            try (var file = fs.open(Path.of("streamed"), "w")) {
+                for (var i = 0; i < 2_000; i++) {
+                    Arrays.fill(buf, (byte) i);
+                    file.write(buf, 0, buf.length);
+                }
+            }
+
+            try (var file = fs.open(Path.of("streamed"), "r")) {
+                for (var i = 0; i < 2_000; i++) {
+                    assertThat(file.read(buf, 0, buf.length)).isEqualTo(buf.length);
+                    assertThat(buf[0]).isEqualTo((byte) i);
+                    assertThat(buf[buf.length - 1]).isEqualTo((byte) i);
+                }
+            }
+        }
+
+        assertThat(Dumper.dump(f).stream().filter(line -> line.startsWith("    chunkSize ")).toList())
+                .containsExactly("    chunkSize " + RegularFile.chunkSize(6_000_000));
+        assertThat(RegularFile.chunkSize(6_000_000)).isEqualTo(16384);
+        // Besides the data, there is only the bitmap and the space of its earlier, smaller copies.
+        assertThat(f.length()).isLessThan(6_200_000);
+    }
+
+    /**
+     * The block of a small file has the size of its data and grows in place, as long as the space after the block is
+     * free.
+     */
+    @Test
+    void small_file_grows_in_place(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var fs = new Filesystem(f, "rw")) {
+            try (var file = fs.open(Path.of("empty"), "w")) {
+                file.flush();
+            }
+            try (var file = fs.open(Path.of("hint"), "w", 1000)) {
+                file.write(new byte[10], 0, 10);
+            }
+            try (var file = fs.open(Path.of("grown"), "w")) {
+                file.write(new byte[100], 0, 100);
+                file.flush();
+                file.write(new byte[200], 0, 200);
+            }
+            try (var file = fs.open(Path.of("blocked"), "w")) {
+                file.write(new byte[100], 0, 100);
+                file.flush();
+                fs.mkdir(Path.of("dir"));
+                file.write(new byte[200], 0, 200);
+            }
+        }
+
+        assertThat(Dumper.dump(f).stream().filter(line -> line.contains("type REGULAR")
+                || line.startsWith("    size ") || line.startsWith("    chunkSize ")).toList())
+                .containsExactly(
+                        "block 6 type REGULAR size 136",
+                        "    size 300",
+                        "    chunkSize 4096",
+                        "block 20 type REGULAR size 40",
+                        "    size 0",
+                        "block 23 type REGULAR size 1032",
+                        "    size 10",
+                        "block 105 type REGULAR size 328",
+                        "    size 300"
+                );
+    }
+
+    /**
+     * The last chunk of an extent only takes the space up to its last written byte. When it cannot grow in place, it is
+     * moved to an extent of its own.
+     */
+    @Test
+    void last_chunk_takes_only_the_space_of_its_data(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+        var data = new byte[9000];
+        for (var i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+
+        try (var fs = new Filesystem(f, "rw")) {
+            try (var file = fs.open(Path.of("tail"), "w")) {
+                file.write(data, 0, 5000);
+            }
+            try (var file = fs.open(Path.of("blocked"), "w")) {
+                file.write(data, 0, 5000);
+                file.flush();
+                fs.mkdir(Path.of("dir"));
+                file.write(data, 5000, 4000);
+            }
+
+            try (var file = fs.open(Path.of("blocked"), "r")) {
+                var buf = new byte[data.length];
+                assertThat(file.read(buf, 0, buf.length)).isEqualTo(data.length);
+                assertThat(buf).isEqualTo(data);
+            }
+        }
+
+        assertThat(Dumper.dump(f).stream().filter(line -> line.startsWith("    extent ")
+                || line.contains("type CHUNK")).toList())
+                .containsExactly(
+                        "    extent chunk 0 count 2 block 26",
+                        "block 26 type CHUNK size 5016",
+                        "    extent chunk 0 count 1 block 346",
+                        "    extent chunk 1 count 2 block 695",
+                        "block 346 type CHUNK size 4104",
+                        "block 695 type CHUNK size 4920"
+                );
+    }
+
+    /**
+     * When the extents no longer fit into the block of the file, they are moved to the leaves of a tree.
+     */
+    @Test
+    void many_extents_are_stored_in_a_tree(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var fs = new Filesystem(f, "rw")) {
+            try (var file = fs.open(Path.of("sparse"), "w")) {
+                for (var i = 0; i < 600; i++) {
+                    file.seek(3 * 4096L * i);
+                    file.write(new byte[]{(byte) i}, 0, 1);
+                }
+                file.seek(5L << 30);
+                file.write(new byte[]{'x'}, 0, 1);
+            }
+
+            try (var file = fs.open(Path.of("sparse"), "r")) {
+                var buf = new byte[2];
+                for (var i = 1; i < 600; i++) {
+                    file.seek(3 * 4096L * i - 1);
+                    assertThat(file.read(buf, 0, 2)).isEqualTo(2);
+                    assertThat(buf).isEqualTo(new byte[]{0, (byte) i});
+                }
+                file.seek(5L << 30);
+                assertThat(file.read(buf, 0, 2)).isEqualTo(1);
+                assertThat(buf[0]).isEqualTo((byte) 'x');
+            }
+        }
+
+        assertThat(Dumper.dump(f).stream().filter(line -> line.startsWith("    depth ")
+                || line.startsWith("    node ") || line.startsWith("    height ")).toList())
+                .containsExactly(
+                        "    depth 1",
+                        "    node chunk 0 block 36",
+                        "    node chunk 765 block 799",
+                        "    node chunk 1530 block 1574",
+                        "    height 0 entries 255",
+                        "    height 0 entries 255",
+                        "    height 0 entries 91"
+                );
+    }
+
+    /**
+     * In the older format, the block of a large file contains a reference to each chunk.
+     */
+    @Test
+    void older_format_is_converted_to_extents() throws IOException {
+        try (var storage = new Storage(new MemoryDevice(null, MappedDevice.SEGMENT_BITS))) {
+            var block = storage.allocateFile(4096);
+            block.writeLong(0, 3 * 4096);
+            block.writeInt(8, 4096);
+            for (var i : new int[]{0, 2}) {
+                var chunk = storage.allocateChunk(4096);
+                chunk.write(8, new byte[]{(byte) ('a' + i)}, 0, 1);
+                block.writeRef(24 + 8 * i, chunk);
+            }
+
+            var file = new RegularFile(block);
+            var buf = new byte[3 * 4096];
+            assertThat(file.read(0, buf, 0, buf.length)).isEqualTo(buf.length);
+            assertThat(new byte[]{buf[0], buf[4096], buf[8192]}).isEqualTo(new byte[]{'a', 0, 'c'});
+
+            file.write(4096, new byte[]{'b'}, 0, 1);
+
+            assertThat(block.readInt(12)).isEqualTo(3);
+            assertThat(file.read(0, buf, 0, buf.length)).isEqualTo(buf.length);
+            assertThat(new byte[]{buf[0], buf[4096], buf[8192]}).isEqualTo(new byte[]{'a', 'b', 'c'});
+        }
+    }
+
+    /**
+     * Opening a file in write mode removes its previous data, including the chunks.
+     */
+    @Test
+    void rewrite_large_file_as_small_file(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+        var path = Path.of("file");
+
+        try (var fs = new Filesystem(f, "rw")) {
+            try (var file = fs.open(path, "w")) {
+                var buf = new byte[10_000];
+                Arrays.fill(buf, (byte) 'x');
+                file.write(buf, 0, buf.length);
+            }
+            try (var file = fs.open(path, "w")) {
+                file.write(new byte[]{'s'}, 0, 1);
+            }
+            try (var file = fs.open(path, "a")) {
+                file.seek(5_000);
+                file.write(new byte[]{'l'}, 0, 1);
+            }
+
+            try (var file = fs.open(path, "r")) {
+                SffsTestUtil.assertTextDumpEquals(file,
+                        "0x00001380  00 00 00 00 00 00 00 00  6C",
+                        "size 0x00001389"
+                );
+            }
+        }
+    }
 }
@@ -1,8 +1,12 @@
 package de.roland_illig.sffs.internal;
 
+import static org.assertj.core.api.Assertions.assertThat;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.TreeMap;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
@@ -18,14 +22,250 @@ class StorageTest {
 
         SffsTestUtil.assertDumpEquals(f,
                 // superblock
-                "53 46 30 31 00 00 00 10  00 00 00 00 00 00 00 02",
-                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
+                "53 46 30 31 00 00 00 20  00 00 00 00 00 00 00 03",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 0F",
+                "00 00 00 00 00 00 01 40  00 00 00 00 00 00 00 00",
                 // root directory
-                "53 46 64 69 00 00 00 48  00 00 00 00 00 00 00 02",
+                "53 46 64 68 00 00 00 20  00 00 00 00 00 00 00 03",
+                "00 00 00 00 00 00 00 06  00 00 00 00 00 00 00 00",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
+                // table of the root directory
+                "53 46 64 74 00 00 00 80  00 00 00 00 00 00 00 00",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
+                "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
+                // bitmap of used space
+                "53 46 62 6D 00 00 00 40  FF FF F0 00 00 00 00 00",
                 "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
                 "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
                 "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00",
                 "00 00 00 00 00 00 00 00  00 00 00 00 00 00 00 00"
         );
     }
+
+    @Test
+    void allocate_reuses_free_blocks(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var storage = new Storage(new RandomAccessFile(f, "rw"))) {
+            var a = storage.allocateChunk(40);
+            var b = storage.allocateName("b");
+            var c = storage.allocateName("c");
+            storage.allocateName("end");
+            a.free();
+            c.free();
+            b.free(); // merges with c and a
+
+            var split = storage.allocateName("split");
+            assertThat(split.getRef()).isEqualTo(a.getRef());
+        }
+
+        SffsTestUtil.assertTextDumpEquals(f,
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 21 bitmap 15 end 432",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 6 entries 0",
+                "block 6 type DIRECTORY_TABLE size 128",
+                "block 15 type BITMAP size 64",
+                "    used 22",
+                "block 20 type NAME size 5",
+                "    split",
+                "block 21 type FREE size 72",
+                "    nextFree 0",
+                "block 26 type NAME size 3",
+                "    end"
+        );
+    }
+
+    @Test
+    void free_space_is_rebuilt_after_crash(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        var crashed = new Storage(new RandomAccessFile(f, "rw"));
+        var a = crashed.allocateName("a");
+        var b = crashed.allocateName("b");
+        crashed.allocateName("end");
+        a.free();
+        b.free();
+        crashed.allocateName("c");
+        // No close, so the chain of free blocks is not written.
+
+        try (var storage = new Storage(new RandomAccessFile(f, "rw"))) {
+            assertThat(storage.readRef(16)).isEqualTo(-1);
+            var reused = storage.allocateName("d");
+            assertThat(reused.getRef()).isEqualTo(b.getRef());
+        }
+
+        SffsTestUtil.assertTextDumpEquals(f,
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 0 bitmap 15 end 368",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 6 entries 0",
+                "block 6 type DIRECTORY_TABLE size 128",
+                "block 15 type BITMAP size 64",
+                "    used 23",
+                "block 20 type NAME size 1",
+                "    c",
+                "block 21 type NAME size 1",
+                "    d",
+                "block 22 type NAME size 3",
+                "    end"
+        );
+    }
+
+    @Test
+    void flush_leaves_free_space_to_bitmap(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        var flushed = new Storage(new RandomAccessFile(f, "rw"));
+        var a = flushed.allocateName("a");
+        flushed.allocateName("end");
+        a.free();
+        flushed.flush();
+        // No close, so the chain of free blocks is not written.
+
+        try (var storage = new Storage(new RandomAccessFile(f, "rw"))) {
+            assertThat(storage.readRef(16)).isEqualTo(-1);
+            assertThat(storage.allocateName("b").getRef()).isEqualTo(a.getRef());
+        }
+    }
+
+    /**
+     * The page cache writes back the modified pages in any order, so the chain of free blocks must be marked as
+     * outdated on the disk before any of them is written.
+     */
+    @Test
+    void free_space_is_rebuilt_after_crash_with_page_cache(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        var data = new byte[4 * 1024 * 1024];
+        try (var fs = new Filesystem(f, "rw,cache=16")) {
+            for (var i = 0; i < 100; i++)
+                try (var file = fs.open(Path.of("file" + i), "w")) {
+                    file.write(data, 0, 3000);
+                }
+            for (var i = 0; i < 100; i += 2)
+                fs.delete(Path.of("file" + i));
+        }
+
+        var crashed = new Filesystem(f, "rw,cache=16");
+        for (var i = 0; i < 50; i++)
+            try (var file = crashed.open(Path.of("new" + i), "w")) {
+                file.write(data, 0, 100);
+            }
+        try (var file = crashed.open(Path.of("large"), "w")) {
+            file.write(data, 0, data.length);
+        }
+        // No close, so only the pages that have been evicted from the cache are written.
+
+        try (var storage = new Storage(new RandomAccessFile(f, "rw"))) {
+            assertThat(storage.readRef(16)).isEqualTo(-1);
+        }
+    }
+
+    /**
+     * A superblock of 16 bytes has no room for the end of the used space, which is then taken from the size of the
+     * file. Therefore, the file must not be grown beyond the used space, not even before a crash.
+     */
+    @Test
+    void storage_with_small_superblock_is_not_preallocated(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+        try (var raf = new RandomAccessFile(f, "rw")) {
+            raf.writeInt(BlockType.SUPER.getMagic());
+            raf.writeInt(16);
+            raf.writeLong(2); // root directory
+            raf.writeLong(0); // first free
+            raf.writeLong(0); // padding
+            raf.writeInt(BlockType.DIRECTORY.getMagic());
+            raf.writeInt(8 + 16 * 4);
+            raf.writeLong(2); // parent
+            raf.write(new byte[16 * 4]); // empty entries
+        }
+
+        var crashed = new Filesystem(f, "rw");
+        for (var i = 0; i < 20; i++)
+            try (var file = crashed.open(Path.of("file" + i), "w")) {
+                file.write(new byte[100], 0, 100);
+            }
+        // No close, as in a crash.
+
+        assertThat(f.length()).isLessThan(8 * 1024);
+        assertThat(Dumper.dump(f).get(0)).isEqualTo("block 0 type SUPER size 16");
+        try (var fs = new Filesystem(f, "r")) {
+            assertThat(fs.readdir(Path.of("."))).hasSize(20);
+        }
+        crashed.close();
+    }
+
+    @Test
+    void bitmap_grows_with_storage(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var storage = new Storage(new RandomAccessFile(f, "rw"))) {
+            for (var i = 0; i < 3; i++)
+                storage.allocateChunk(4096);
+        }
+
+        SffsTestUtil.assertTextDumpEquals(f,
+                "block 0 type SUPER size 32",
+                "    root 3 firstFree 15 bitmap 534 end 12800",
+                "block 3 type HASHED_DIRECTORY size 32",
+                "    parent 3 table 6 entries 0",
+                "block 6 type DIRECTORY_TABLE size 128",
+                "block 15 type FREE size 72",
+                "    nextFree 0",
+                "block 20 type CHUNK size 4104",
+                "block 277 type CHUNK size 4104",
+                "block 534 type BITMAP size 128",
+                "    used 795",
+                "block 543 type CHUNK size 4104"
+        );
+    }
+
+    @Test
+    void preallocate(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var storage = new Storage(new RandomAccessFile(f, "rw"))) {
+            storage.allocateName("first");
+            assertThat(f.length()).isEqualTo(320 + 64 * 1024);
+
+            storage.allocateName("second");
+            assertThat(f.length()).isEqualTo(320 + 64 * 1024);
+
+            storage.compact();
+            assertThat(f.length()).isEqualTo(352);
+
+            storage.allocateName("third").free();
+            assertThat(f.length()).isEqualTo(352 + 64 * 1024);
+        }
+
+        assertThat(f.length()).isEqualTo(352);
+    }
+
+    @Test
+    void header_cache(@TempDir File tmpdir) throws IOException {
+        var f = new File(tmpdir, "storage");
+
+        try (var storage = new Storage(new RandomAccessFile(f, "rw"))) {
+            var name = storage.allocateName("name");
+            storage.allocateName("end");
+            var stats = new TreeMap<String, Long>();
+            storage.statistics(stats);
+            var misses = stats.get("headerCache.misses");
+
+            var same = name.block(name.getRef(), BlockType.NAME);
+            assertThat(same.getSize()).isEqualTo(4);
+            storage.statistics(stats);
+            assertThat(stats.get("headerCache.misses")).isEqualTo(misses);
+
+            name.free();
+            assertThat(name.block(name.getRef()).getType()).isEqualTo(BlockType.FREE);
+        }
+    }
 }